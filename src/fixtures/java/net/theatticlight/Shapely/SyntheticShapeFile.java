@@ -0,0 +1,317 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import com.hexiong.jdbf.DBFWriter;
+import com.hexiong.jdbf.JDBFException;
+import com.hexiong.jdbf.JDBField;
+
+/**
+ * Writes deterministic polygon shapefiles for the benchmarks and tests.
+ * Records are laid out on a square grid of CELL_SIZE cells, one star shaped
+ * polygon per cell with a jittered radius, and every third polygon has a
+ * square hole. The same arguments always produce byte for byte identical
+ * files. Polygons can also be written as PolygonZ, PolygonM or MultiPatch
+ * records, with the Z and M values given by z and m.
+ *
+ * The .dbf has a NAME field ("poly" and the record number), an ID field
+ * holding the record number, SHARE with the record number over the record
+ * count, HOLE for the records with a hole and SURVEYED, a date that is
+ * blank on every fifth record. The .qix is an STR tree written the same way
+ * ShapeFile persists one.
+ */
+public class SyntheticShapeFile {
+	static final double CELL_SIZE = 10;
+	static final int POLYGON = 5;
+	static final int POLYGONZ = 15;
+	static final int POLYGONM = 25;
+	static final int MULTIPATCH = 31;
+
+	final int records;
+	final int vertices;
+	final long seed;
+	final int shapeType;
+	final int columns;
+
+	public SyntheticShapeFile(int records, int vertices, long seed) {
+		this(records, vertices, seed, POLYGON);
+	}
+
+	/**
+	 * @param shapeType POLYGON, POLYGONZ, POLYGONM or MULTIPATCH
+	 */
+	public SyntheticShapeFile(int records, int vertices, long seed, int shapeType) {
+		if(records < 1 || vertices < 3)
+			throw new IllegalArgumentException("Need at least one record and three vertices");
+		if(shapeType != POLYGON && shapeType != POLYGONZ && shapeType != POLYGONM && shapeType != MULTIPATCH)
+			throw new IllegalArgumentException("Unsupported shape type: " + shapeType);
+		this.records = records;
+		this.vertices = vertices;
+		this.seed = seed;
+		this.shapeType = shapeType;
+		this.columns = (int)Math.ceil(Math.sqrt(records));
+	}
+
+	/**
+	 * Z value of a vertex, by record number and vertex index in the record.
+	 */
+	public static double z(int recordNumber, int vertex) {
+		return recordNumber + vertex * 0.25;
+	}
+
+	/**
+	 * M value of a vertex, by record number and vertex index in the record.
+	 */
+	public static double m(int recordNumber, int vertex) {
+		return -recordNumber - vertex * 0.5;
+	}
+
+	boolean hasZ() {
+		return shapeType == POLYGONZ || shapeType == MULTIPATCH;
+	}
+
+	boolean hasM() {
+		return shapeType != POLYGON;
+	}
+
+	/**
+	 * Width and height of the area the records cover.
+	 */
+	public double getExtent() {
+		return columns * CELL_SIZE;
+	}
+
+	/**
+	 * Query points spread uniformly over the covered area, interleaved x, y.
+	 */
+	public double[] samplePoints(int count, long seed) {
+		Random random = new Random(seed);
+		double[] points = new double[count*2];
+		for(int i = 0; i < points.length; i++)
+			points[i] = random.nextDouble() * getExtent();
+		return points;
+	}
+
+	/**
+	 * Writes fileBaseName.shp, .shx, .dbf and .qix.
+	 */
+	public void write(String fileBaseName) throws IOException, JDBFException {
+		double[] boxes = new double[records*4];
+		double[] extent = writeShapes(fileBaseName, boxes);
+		writeAttributes(fileBaseName);
+		PackedSpatialIndex.bulkLoad(boxes, extent, ShapeFile.RTREE_NODE_CAPACITY).write(fileBaseName, records);
+	}
+
+	/**
+	 * Writes into a fresh temporary directory and returns the base name.
+	 */
+	public String writeTemporary() throws IOException, JDBFException {
+		File directory = Files.createTempDirectory("shapely-bench").toFile();
+		directory.deleteOnExit();
+		String base = new File(directory, "synthetic-" + records + "-" + vertices).getPath();
+		write(base);
+		for(String extension: new String[] {".shp", ".shx", ".dbf", ".qix"})
+			new File(base + extension).deleteOnExit();
+		return base;
+	}
+
+	private double[] writeShapes(String fileBaseName, double[] boxes) throws IOException {
+		Random random = new Random(seed);
+		double[] extent = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE,
+							Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+
+		FileChannel shp = new FileOutputStream(fileBaseName + ".shp").getChannel();
+		FileChannel shx = new FileOutputStream(fileBaseName + ".shx").getChannel();
+		try {
+			shp.position(100);
+			shx.position(100);
+			ByteBuffer indexEntries = ByteBuffer.allocate(1 << 16).order(ByteOrder.BIG_ENDIAN);
+			int offset = 100;
+			for(int r = 0; r < records; r++) {
+				double cx = (r % columns + 0.5) * CELL_SIZE;
+				double cy = (r / columns + 0.5) * CELL_SIZE;
+				boolean hole = r % 3 == 0;
+				int parts = hole ? 2 : 1;
+				int points = vertices + 1 + (hole ? 5 : 0);
+				int contentLength = 44 + 4*parts + 16*points;
+				if(shapeType == MULTIPATCH)
+					contentLength += 4*parts;
+				if(hasZ())
+					contentLength += 16 + 8*points;
+				if(hasM())
+					contentLength += 16 + 8*points;
+
+				ByteBuffer bb = ByteBuffer.allocate(8 + contentLength);
+				bb.order(ByteOrder.BIG_ENDIAN).putInt(r + 1).putInt(contentLength / 2);
+				bb.order(ByteOrder.LITTLE_ENDIAN).putInt(shapeType);
+				int boxPosition = bb.position();
+				bb.position(boxPosition + 32);
+				bb.putInt(parts).putInt(points).putInt(0);
+				if(hole)
+					bb.putInt(vertices + 1);
+				if(shapeType == MULTIPATCH) {
+					bb.putInt(Record.MultiPatch.OUTER_RING);
+					if(hole)
+						bb.putInt(Record.MultiPatch.INNER_RING);
+				}
+
+				double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+				double firstX = 0, firstY = 0;
+				for(int v = 0; v < vertices; v++) {
+					double angle = -2 * Math.PI * v / vertices;
+					double radius = CELL_SIZE * (0.3 + 0.15 * random.nextDouble());
+					double x = cx + radius * Math.cos(angle);
+					double y = cy + radius * Math.sin(angle);
+					if(v == 0) {
+						firstX = x;
+						firstY = y;
+					}
+					bb.putDouble(x).putDouble(y);
+					minX = Math.min(minX, x);
+					minY = Math.min(minY, y);
+					maxX = Math.max(maxX, x);
+					maxY = Math.max(maxY, y);
+				}
+				bb.putDouble(firstX).putDouble(firstY);
+				if(hole) {
+					double h = CELL_SIZE * 0.1;
+					bb.putDouble(cx - h).putDouble(cy - h);
+					bb.putDouble(cx + h).putDouble(cy - h);
+					bb.putDouble(cx + h).putDouble(cy + h);
+					bb.putDouble(cx - h).putDouble(cy + h);
+					bb.putDouble(cx - h).putDouble(cy - h);
+				}
+				bb.putDouble(boxPosition, minX).putDouble(boxPosition + 8, minY);
+				bb.putDouble(boxPosition + 16, maxX).putDouble(boxPosition + 24, maxY);
+				if(hasZ()) {
+					bb.putDouble(z(r + 1, 0)).putDouble(z(r + 1, points - 1));
+					for(int v = 0; v < points; v++)
+						bb.putDouble(z(r + 1, v));
+					extent[4] = Math.min(extent[4], z(r + 1, 0));
+					extent[5] = Math.max(extent[5], z(r + 1, points - 1));
+				}
+				if(hasM()) {
+					bb.putDouble(m(r + 1, points - 1)).putDouble(m(r + 1, 0));
+					for(int v = 0; v < points; v++)
+						bb.putDouble(m(r + 1, v));
+					extent[6] = Math.min(extent[6], m(r + 1, points - 1));
+					extent[7] = Math.max(extent[7], m(r + 1, 0));
+				}
+				bb.flip();
+				while(bb.hasRemaining())
+					shp.write(bb);
+
+				boxes[r*4] = minX;
+				boxes[r*4+1] = minY;
+				boxes[r*4+2] = maxX;
+				boxes[r*4+3] = maxY;
+				extent[0] = Math.min(extent[0], minX);
+				extent[1] = Math.min(extent[1], minY);
+				extent[2] = Math.max(extent[2], maxX);
+				extent[3] = Math.max(extent[3], maxY);
+
+				if(!indexEntries.hasRemaining())
+					flush(shx, indexEntries);
+				indexEntries.putInt(offset / 2).putInt(contentLength / 2);
+				offset += 8 + contentLength;
+			}
+			flush(shx, indexEntries);
+
+			writeHeader(shp, offset, extent);
+			writeHeader(shx, 100 + 8*records, extent);
+		} finally {
+			shp.close();
+			shx.close();
+		}
+		return Arrays.copyOf(extent, 4);
+	}
+
+	/**
+	 * Zero Z and M ranges in the header of a file without them, as the
+	 * specification asks.
+	 */
+	private void writeHeader(FileChannel channel, int fileLength, double[] extent) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(100);
+		bb.order(ByteOrder.BIG_ENDIAN).putInt(9994);
+		bb.putInt(24, fileLength / 2);
+		bb.position(28);
+		bb.order(ByteOrder.LITTLE_ENDIAN).putInt(1000).putInt(shapeType);
+		bb.putDouble(extent[0]).putDouble(extent[1]).putDouble(extent[2]).putDouble(extent[3]);
+		bb.putDouble(hasZ() ? extent[4] : 0).putDouble(hasZ() ? extent[5] : 0);
+		bb.putDouble(hasM() ? extent[6] : 0).putDouble(hasM() ? extent[7] : 0);
+		bb.flip();
+		while(bb.hasRemaining())
+			channel.write(bb, bb.position());
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer bb) throws IOException {
+		bb.flip();
+		while(bb.hasRemaining())
+			channel.write(bb);
+		bb.clear();
+	}
+
+	private void writeAttributes(String fileBaseName) throws IOException, JDBFException {
+		DBFWriter writer = new DBFWriter(fileBaseName + ".dbf", new JDBField[] {
+				new JDBField("NAME", 'C', 20, 0),
+				new JDBField("ID", 'N', 8, 0),
+				new JDBField("SHARE", 'N', 12, 6),
+				new JDBField("HOLE", 'L', 1, 0),
+				new JDBField("SURVEYED", 'D', 8, 0)});
+		try {
+			for(int r = 1; r <= records; r++) {
+				Date surveyed = new GregorianCalendar(2000 + r % 20, r % 12, 1 + r % 28).getTime();
+				writer.addRecord(new Object[] {"poly" + r, Integer.valueOf(r), Double.valueOf((double)r / records),
+						Boolean.valueOf((r - 1) % 3 == 0), surveyed});
+			}
+		} finally {
+			writer.close();
+		}
+		blankDates(fileBaseName + ".dbf");
+	}
+
+	/**
+	 * DBFWriter writes today's date for a null one, so the blank dates are
+	 * filled with spaces once the table is written.
+	 */
+	private void blankDates(String dbfPath) throws IOException {
+		RandomAccessFile dbf = new RandomAccessFile(dbfPath, "rw");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			dbf.readFully(header.array());
+			int headerLength = header.getShort(8) & 0xFFFF;
+			int recordLength = header.getShort(10) & 0xFFFF;
+			int dateOffset = 1 + 20 + 8 + 12 + 1;
+			for(int r = 5; r <= records; r += 5) {
+				dbf.seek(headerLength + (long)(r - 1)*recordLength + dateOffset);
+				dbf.write("        ".getBytes(StandardCharsets.US_ASCII));
+			}
+		} finally {
+			dbf.close();
+		}
+	}
+
+	/**
+	 * Writes a shapefile: SyntheticShapeFile &lt;base path&gt; &lt;records&gt; &lt;vertices&gt; [seed]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.out.println("Usage: SyntheticShapeFile <base path> <records> <vertices> [seed]");
+			return;
+		}
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		new SyntheticShapeFile(Integer.parseInt(args[1]), Integer.parseInt(args[2]), seed).write(args[0]);
+	}
+}
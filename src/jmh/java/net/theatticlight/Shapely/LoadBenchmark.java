@@ -0,0 +1,54 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open a shapefile. Without a .qix the spatial index is bulk loaded
+ * from the record bounds on every open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+	@Param({"1000", "100000"})
+	int records;
+
+	@Param({"32"})
+	int vertices;
+
+	@Param({"true", "false"})
+	boolean qix;
+
+	@Param({"false", "true"})
+	boolean mapShapes;
+
+	String base;
+
+	@Setup
+	public void generate() throws Exception {
+		base = new SyntheticShapeFile(records, vertices, 1).writeTemporary();
+		if(!qix)
+			new File(base + ".qix").delete();
+	}
+
+	@Benchmark
+	public ShapeFile open() throws Exception {
+		return new ShapeFile(base, new ShapeFile.Options().mapShapes(mapShapes));
+	}
+}
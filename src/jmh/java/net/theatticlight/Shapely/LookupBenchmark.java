@@ -0,0 +1,82 @@
+package net.theatticlight.Shapely;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.theatticlight.Shapely.AttributeTable.FieldHandle;
+
+/**
+ * End to end getInfoAtPoint from several threads sharing one ShapeFile, as
+ * a lookup service would. Run with -t to change the thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LookupBenchmark {
+	static final int POINTS = 1 << 14;
+
+	@State(Scope.Benchmark)
+	public static class Layer {
+		@Param({"10000"})
+		int records;
+
+		@Param({"64"})
+		int vertices;
+
+		@Param({"false", "true"})
+		boolean mapShapes;
+
+		SyntheticShapeFile synthetic;
+		ShapeFile shapeFile;
+		FieldHandle name;
+
+		@Setup
+		public void load() throws Exception {
+			synthetic = new SyntheticShapeFile(records, vertices, 1);
+			shapeFile = new ShapeFile(synthetic.writeTemporary(), new ShapeFile.Options().mapShapes(mapShapes));
+			name = shapeFile.getField("NAME");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Queries {
+		double[] points;
+		int next;
+
+		@Setup
+		public void sample(Layer layer) {
+			points = layer.synthetic.samplePoints(POINTS, Thread.currentThread().getId());
+		}
+
+		Record.Vect next() {
+			int i = next++ & (POINTS - 1);
+			return new Record.Vect(points[2*i], points[2*i+1]);
+		}
+	}
+
+	@Benchmark
+	public List<Object> getInfoAtPoint(Layer layer, Queries queries) throws Exception {
+		return layer.shapeFile.getInfoAtPoint(queries.next(), layer.name);
+	}
+
+	@Benchmark
+	public List<Record> getNearestRecords(Layer layer, Queries queries) throws Exception {
+		return layer.shapeFile.getNearestRecords(queries.next(), 1, Double.POSITIVE_INFINITY);
+	}
+}
@@ -0,0 +1,61 @@
+package net.theatticlight.Shapely;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.theatticlight.Shapely.Record.Polygon;
+
+/**
+ * Polygon.inBoundry for points spread over the polygon's bounding box, with
+ * and without the edge index a prepared polygon carries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointInPolygonBenchmark {
+	static final int POINTS = 1024;
+
+	@Param({"16", "256", "4096", "65536"})
+	int vertices;
+
+	@Param({"false", "true"})
+	boolean prepared;
+
+	Polygon polygon;
+	Record.Vect[] points = new Record.Vect[POINTS];
+	int next;
+
+	@Setup
+	public void load() throws Exception {
+		String base = new SyntheticShapeFile(1, vertices, 1).writeTemporary();
+		polygon = (Polygon)new ShapeFile(base).readRecord(1).getShape();
+		if(prepared)
+			polygon.prepare();
+
+		Random random = new Random(2);
+		for(int i = 0; i < POINTS; i++)
+			points[i] = new Record.Vect(
+					polygon.minX + random.nextDouble() * (polygon.maxX - polygon.minX),
+					polygon.minY + random.nextDouble() * (polygon.maxY - polygon.minY));
+	}
+
+	@Benchmark
+	public boolean inBoundry() {
+		return polygon.inBoundry(points[next++ & (POINTS - 1)]);
+	}
+}
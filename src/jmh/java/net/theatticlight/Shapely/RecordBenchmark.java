@@ -0,0 +1,67 @@
+package net.theatticlight.Shapely;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Record access through the index and cache, including the geometry:
+ * records decode their header first and their shape only when asked, so
+ * each benchmark asks. The cold case walks the file through a one entry
+ * cache so every access misses and decodes header and shape; the warm
+ * case reads from a cache that already holds every record decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBenchmark {
+	static final int RECORDS = 1000;
+
+	@Param({"32", "1024"})
+	int vertices;
+
+	@Param({"true", "false"})
+	boolean mapShapes;
+
+	ShapeFile cold;
+	ShapeFile warm;
+	int next;
+
+	@Setup
+	public void load() throws Exception {
+		String base = new SyntheticShapeFile(RECORDS, vertices, 1).writeTemporary();
+		cold = new ShapeFile(base, new ShapeFile.Options()
+				.mapShapes(mapShapes)
+				.cache(new SegmentedLruCache(1, RecordCache.ENTRIES)));
+		warm = new ShapeFile(base, new ShapeFile.Options()
+				.mapShapes(mapShapes)
+				.cache(SegmentedLruCache.pinAll()));
+		for(int recordNumber = 1; recordNumber <= RECORDS; recordNumber++)
+			warm.getRecord(recordNumber).getShape();
+	}
+
+	@Benchmark
+	public Record.Shape getRecordCold() throws Exception {
+		next = next == RECORDS ? 1 : next + 1;
+		return cold.getRecord(next).getShape();
+	}
+
+	@Benchmark
+	public Record.Shape getRecordWarm() throws Exception {
+		next = next == RECORDS ? 1 : next + 1;
+		return warm.getRecord(next).getShape();
+	}
+}
@@ -0,0 +1,61 @@
+package net.theatticlight.Shapely;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Candidate lookups against the .qix, read as the object tree SpatialIndex
+ * builds and as the flattened PackedSpatialIndex ShapeFile uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialIndexBenchmark {
+	static final int POINTS = 4096;
+
+	@Param({"1000", "100000"})
+	int records;
+
+	@Param({"tree", "packed"})
+	String index;
+
+	SpatialLookup lookup;
+	double[] points;
+	int[] buffer = new int[64];
+	int next;
+
+	@Setup
+	public void load() throws Exception {
+		SyntheticShapeFile synthetic = new SyntheticShapeFile(records, 8, 1);
+		String base = synthetic.writeTemporary();
+		lookup = index.equals("tree") ? new SpatialIndex(base) : PackedSpatialIndex.load(base);
+		points = synthetic.samplePoints(POINTS, 2);
+	}
+
+	@Benchmark
+	public List<Integer> getRecordsAtPoint() {
+		int i = next++ & (POINTS - 1);
+		return lookup.getRecordsAtPoint(points[2*i], points[2*i+1]);
+	}
+
+	@Benchmark
+	public int getRecordsAtPointBuffered() {
+		int i = next++ & (POINTS - 1);
+		return lookup.getRecordsAtPoint(points[2*i], points[2*i+1], buffer);
+	}
+}
@@ -0,0 +1,89 @@
+package net.theatticlight.Shapely;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.theatticlight.Shapely.AttributeTable.FieldHandle;
+
+/**
+ * Hash index from the values of one attribute field to the records that
+ * hold them, for reverse lookups such as every zone with a given TZID and
+ * for dropping point query candidates by attribute before their geometry
+ * is read. Built with one pass over the field's column.
+ *
+ * Numbers are compared by value, so an index on a numeric field finds 3
+ * whether asked for as an Integer, a Long or the Double 3.0.
+ */
+public class AttributeIndex {
+	final String field;
+	final Map<Object,int[]> records;
+
+	AttributeIndex(FieldHandle field, int recordCount) {
+		this.field = field.getName();
+
+		Object[] keys = new Object[recordCount];
+		Map<Object,int[]> counts = new HashMap<Object,int[]>();
+		for(int recordNumber = 1; recordNumber <= recordCount; recordNumber++) {
+			Object key = key(field.get(recordNumber));
+			keys[recordNumber-1] = key;
+			int[] count = counts.get(key);
+			if(count == null)
+				counts.put(key, count = new int[1]);
+			count[0]++;
+		}
+
+		// Fill each list from its end, walking backwards, so it ends up ascending.
+		records = new HashMap<Object,int[]>(counts.size() * 4 / 3 + 1);
+		for(int recordNumber = recordCount; recordNumber >= 1; recordNumber--) {
+			Object key = keys[recordNumber-1];
+			int[] count = counts.get(key);
+			int[] list = records.get(key);
+			if(list == null)
+				records.put(key, list = new int[count[0]]);
+			list[--count[0]] = recordNumber;
+		}
+	}
+
+	/**
+	 * Normalizes a value for hashing: whole numbers become Longs and other
+	 * numbers Doubles. Null is kept as a key of its own.
+	 */
+	static Object key(Object value) {
+		if(!(value instanceof Number))
+			return value;
+		Number number = (Number)value;
+		if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return Long.valueOf(number.longValue());
+		double d = number.doubleValue();
+		if(d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 0x1p63)
+			return Long.valueOf((long)d);
+		return Double.valueOf(d);
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	/**
+	 * Numbers of the records holding the value, ascending. The array is
+	 * shared and must not be modified.
+	 */
+	public int[] findRecords(Object value) {
+		int[] found = records.get(key(value));
+		return found == null ? ShapeFile.NO_RECORDS : found;
+	}
+
+	public boolean matches(int recordNumber, Object value) {
+		return Arrays.binarySearch(findRecords(value), recordNumber) >= 0;
+	}
+
+	public Set<Object> getValues() {
+		return records.keySet();
+	}
+
+	public int getValueCount() {
+		return records.size();
+	}
+}
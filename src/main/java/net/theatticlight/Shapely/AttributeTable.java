@@ -0,0 +1,23 @@
+package net.theatticlight.Shapely;
+
+/**
+ * Attribute rows of a shapefile, one per record, as read from its .dbf.
+ */
+public interface AttributeTable {
+
+	/**
+	 * A field resolved once by name so repeated reads skip the name lookup.
+	 */
+	public static interface FieldHandle {
+		public String getName();
+		public Object get(int recordNumber);
+	}
+
+	/**
+	 * Resolves a field by name.
+	 * @throws IllegalArgumentException if the table has no such field
+	 */
+	public FieldHandle getField(String fieldName);
+
+	public Object getShapeInfo(int recordNumber, String fieldName);
+}
@@ -0,0 +1,128 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+
+/**
+ * Answers a batch of point lookups. Points are visited in Morton (Z curve)
+ * order over the layer's bounds so consecutive lookups descend through the
+ * same index nodes and hit the same cached records, and the ordered batch is
+ * split into ranges that a fork-join pool works through in parallel.
+ * Subclasses supply the lookup for a single point.
+ */
+abstract class BatchLookup<T> {
+	static final int MIN_SPLIT = 64;
+
+	/**
+	 * Carries a lookup's checked exception out of a fork-join task.
+	 */
+	static class LookupFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		LookupFailure(Exception cause) {
+			super(cause);
+		}
+	}
+
+	final double[] xs;
+	final double[] ys;
+	final int[] order;
+	final Object[] results;
+	final int threshold;
+
+	/**
+	 * @param bounds the extent the Z curve is laid over, as from getBounds
+	 */
+	BatchLookup(double[] xs, double[] ys, double[] bounds, int parallelism) {
+		if(xs.length != ys.length)
+			throw new IllegalArgumentException("Got " + xs.length + " X values and " + ys.length + " Y values");
+		this.xs = xs;
+		this.ys = ys;
+		this.order = mortonOrder(xs, ys, bounds);
+		this.results = new Object[xs.length];
+		this.threshold = Math.max(MIN_SPLIT, xs.length / (parallelism * 4));
+	}
+
+	abstract T lookup(double x, double y) throws IOException, ShapeException;
+
+	class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from, to;
+
+		Range(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from > threshold) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Range(from, mid), new Range(mid, to));
+				return;
+			}
+			try {
+				for(int i = from; i < to; i++) {
+					int point = order[i];
+					results[point] = lookup(xs[point], ys[point]);
+				}
+			} catch (IOException e) {
+				throw new LookupFailure(e);
+			} catch (ShapeException e) {
+				throw new LookupFailure(e);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	List<T> run(ForkJoinPool pool) throws IOException, ShapeException {
+		try {
+			pool.invoke(new Range(0, order.length));
+		} catch (LookupFailure failure) {
+			if(failure.getCause() instanceof IOException)
+				throw (IOException)failure.getCause();
+			throw (ShapeException)failure.getCause();
+		}
+		return Arrays.asList((T[])results);
+	}
+
+	/**
+	 * Indexes of the points sorted by their position on a Z curve through
+	 * the given bounds. Points outside the bounds are clamped to its edge.
+	 */
+	static int[] mortonOrder(double[] xs, double[] ys, double[] bounds) {
+		double xScale = bounds[2] > bounds[0] ? 65535 / (bounds[2] - bounds[0]) : 0;
+		double yScale = bounds[3] > bounds[1] ? 65535 / (bounds[3] - bounds[1]) : 0;
+
+		long[] keys = new long[xs.length];
+		for(int i = 0; i < keys.length; i++) {
+			int x = (int)Math.max(0, Math.min(65535, (xs[i] - bounds[0]) * xScale));
+			int y = (int)Math.max(0, Math.min(65535, (ys[i] - bounds[1]) * yScale));
+			long code = spread(x) | (spread(y) << 1);
+			// 32 bits of code above a 31 bit index keep the sign bit clear.
+			keys[i] = (code << 31) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] order = new int[keys.length];
+		for(int i = 0; i < order.length; i++)
+			order[i] = (int)(keys[i] & Integer.MAX_VALUE);
+		return order;
+	}
+
+	/**
+	 * Spreads the low 16 bits of v out to the even bits of the result.
+	 */
+	private static long spread(int v) {
+		long x = v & 0xFFFFL;
+		x = (x | (x << 8)) & 0x00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0FL;
+		x = (x | (x << 2)) & 0x33333333L;
+		x = (x | (x << 1)) & 0x55555555L;
+		return x;
+	}
+}
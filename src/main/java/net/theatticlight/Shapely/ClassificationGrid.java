@@ -0,0 +1,253 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.theatticlight.Shapely.Record.Polygon;
+import net.theatticlight.Shapely.Record.Shape;
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.Record.VertexShape;
+
+/**
+ * Grid over a layer's bounds where every cell is classified ahead of time
+ * as lying wholly inside one record, wholly outside every record, or on a
+ * boundary with a short list of candidate records. Interior and empty cells
+ * answer a lookup without the spatial index or a containment test; only
+ * boundary cells need exact tests.
+ *
+ * A cell is boundary for a polygon when one of the polygon's edges passes
+ * through it. Cells no edge touches are uniformly inside or outside the
+ * polygon, and so are unbroken runs of them along a row, so only one point
+ * per run is tested. Shapes other than polygons make every cell in their
+ * bounds boundary.
+ *
+ * Cells hold a record number when inside, EMPTY, or -(list+1) for the
+ * candidate list in lists[listStart[list]] up to lists[listStart[list+1]].
+ */
+class ClassificationGrid {
+	static final int EMPTY = 0;
+	static final int OUTSIDE = Integer.MIN_VALUE;
+
+	final double minX, minY, maxX, maxY;
+	final int resolution;
+	final double cellWidth, cellHeight;
+	final int[] cells;
+	final int[] listStart;
+	final int[] lists;
+
+	private ClassificationGrid(double[] bounds, int resolution, int[] cells, int[] listStart, int[] lists) {
+		this.minX = bounds[0];
+		this.minY = bounds[1];
+		this.maxX = bounds[2];
+		this.maxY = bounds[3];
+		this.resolution = resolution;
+		this.cellWidth = (maxX - minX) / resolution;
+		this.cellHeight = (maxY - minY) / resolution;
+		this.cells = cells;
+		this.listStart = listStart;
+		this.lists = lists;
+	}
+
+	/**
+	 * Builds the finest grid, up to resolution cells a side, that fits in
+	 * maxBytes. Each halving of the resolution is tried in turn.
+	 */
+	static ClassificationGrid build(ShapeFile shapeFile, int resolution, long maxBytes) throws IOException, ShapeException {
+		while(resolution > 1 && (long)resolution*resolution*4 > maxBytes)
+			resolution /= 2;
+
+		while(true) {
+			ClassificationGrid grid = new Builder(shapeFile, resolution).build();
+			if(grid.getSizeInBytes() <= maxBytes || resolution == 1)
+				return grid;
+			resolution /= 2;
+		}
+	}
+
+	private static class Builder {
+		final ShapeFile shapeFile;
+		final double[] bounds;
+		final int resolution;
+		final double cellWidth, cellHeight;
+		final int[] stamp;
+
+		int[] pairs = new int[1024];
+		int pairCount = 0;
+
+		Builder(ShapeFile shapeFile, int resolution) {
+			this.shapeFile = shapeFile;
+			this.bounds = shapeFile.getBounds();
+			this.resolution = resolution;
+			this.cellWidth = (bounds[2] - bounds[0]) / resolution;
+			this.cellHeight = (bounds[3] - bounds[1]) / resolution;
+			this.stamp = new int[resolution*resolution];
+		}
+
+		int column(double x) {
+			int c = cellWidth > 0 ? (int)Math.floor((x - bounds[0]) / cellWidth) : 0;
+			return c < 0 ? 0 : c >= resolution ? resolution - 1 : c;
+		}
+
+		int row(double y) {
+			int r = cellHeight > 0 ? (int)Math.floor((y - bounds[1]) / cellHeight) : 0;
+			return r < 0 ? 0 : r >= resolution ? resolution - 1 : r;
+		}
+
+		void add(int cell, int recordNumber) {
+			if(pairCount == pairs.length)
+				pairs = Arrays.copyOf(pairs, pairs.length * 2);
+			pairs[pairCount++] = cell;
+			if(pairCount == pairs.length)
+				pairs = Arrays.copyOf(pairs, pairs.length * 2);
+			pairs[pairCount++] = recordNumber;
+		}
+
+		void mark(int cell, int recordNumber) {
+			if(stamp[cell] == recordNumber)
+				return;
+			stamp[cell] = recordNumber;
+			add(cell, -recordNumber);
+		}
+
+		ClassificationGrid build() throws IOException, ShapeException {
+			for(int recordNumber = 1; recordNumber <= shapeFile.getRecordCount(); recordNumber++) {
+				Shape shape = shapeFile.readRecord(recordNumber).getShape();
+				if(shape instanceof Polygon)
+					classify((Polygon)shape, recordNumber);
+				else if(shape instanceof VertexShape)
+					markBounds((VertexShape)shape, recordNumber);
+				else if(shape instanceof Record.Point) {
+					Record.Point point = (Record.Point)shape;
+					mark(row(point.getY())*resolution + column(point.getX()), recordNumber);
+				}
+			}
+			return pack();
+		}
+
+		private void markBounds(VertexShape shape, int recordNumber) {
+			for(int r = row(shape.minY); r <= row(shape.maxY); r++)
+				for(int c = column(shape.minX); c <= column(shape.maxX); c++)
+					mark(r*resolution + c, recordNumber);
+		}
+
+		/**
+		 * Marks every cell the polygon's edges pass through, then tests one
+		 * point of each run of unmarked cells in the polygon's bounds.
+		 */
+		private void classify(Polygon polygon, int recordNumber) {
+			double[] coords = polygon.coords;
+			for(int ring = 0; ring < polygon.parts.length; ring++) {
+				int start = polygon.parts[ring];
+				int end = polygon.ringEnd(ring);
+				for(int i = start, j = end - 1; i < end; j = i++)
+					markEdge(coords[2*j], coords[2*j+1], coords[2*i], coords[2*i+1], recordNumber);
+			}
+
+			polygon.prepare();
+			int firstColumn = column(polygon.minX), lastColumn = column(polygon.maxX);
+			for(int r = row(polygon.minY); r <= row(polygon.maxY); r++) {
+				boolean runInside = false;
+				boolean inRun = false;
+				for(int c = firstColumn; c <= lastColumn; c++) {
+					int cell = r*resolution + c;
+					if(stamp[cell] == recordNumber) {
+						inRun = false;
+						continue;
+					}
+					if(!inRun) {
+						runInside = polygon.contains(bounds[0] + (c + 0.5)*cellWidth, bounds[1] + (r + 0.5)*cellHeight);
+						inRun = true;
+					}
+					if(runInside)
+						add(cell, recordNumber);
+				}
+			}
+		}
+
+		/**
+		 * Marks the cells along an edge by cutting it into pieces no longer
+		 * than a cell and marking the cells under each piece's bounds.
+		 */
+		private void markEdge(double x1, double y1, double x2, double y2, int recordNumber) {
+			double dx = x2 - x1, dy = y2 - y1;
+			int pieces = 1 + (int)Math.max(cellWidth > 0 ? Math.abs(dx) / cellWidth : 0,
+											cellHeight > 0 ? Math.abs(dy) / cellHeight : 0);
+			double ax = x1, ay = y1;
+			for(int p = 1; p <= pieces; p++) {
+				double bx = p == pieces ? x2 : x1 + dx * p / pieces;
+				double by = p == pieces ? y2 : y1 + dy * p / pieces;
+				for(int r = row(Math.min(ay, by)); r <= row(Math.max(ay, by)); r++)
+					for(int c = column(Math.min(ax, bx)); c <= column(Math.max(ax, bx)); c++)
+						mark(r*resolution + c, recordNumber);
+				ax = bx;
+				ay = by;
+			}
+		}
+
+		/**
+		 * Groups the collected (cell, record) pairs by cell. Boundary records
+		 * were stored negated; a cell with a single inside record and nothing
+		 * else becomes an interior cell.
+		 */
+		private ClassificationGrid pack() {
+			int cellCount = resolution*resolution;
+			int[] start = new int[cellCount + 1];
+			for(int p = 0; p < pairCount; p += 2)
+				start[pairs[p] + 1]++;
+			for(int c = 0; c < cellCount; c++)
+				start[c + 1] += start[c];
+			int[] byCell = new int[pairCount / 2];
+			int[] fill = Arrays.copyOf(start, cellCount);
+			for(int p = 0; p < pairCount; p += 2)
+				byCell[fill[pairs[p]]++] = pairs[p + 1];
+			pairs = null;
+
+			int[] cells = new int[cellCount];
+			int[] listStart = new int[16];
+			int[] lists = new int[byCell.length];
+			int listCount = 0, listed = 0;
+			for(int c = 0; c < cellCount; c++) {
+				int from = start[c], to = start[c + 1];
+				if(from == to)
+					cells[c] = EMPTY;
+				else if(to - from == 1 && byCell[from] > 0)
+					cells[c] = byCell[from];
+				else {
+					if(listCount + 1 >= listStart.length)
+						listStart = Arrays.copyOf(listStart, listStart.length * 2);
+					for(int i = from; i < to; i++)
+						lists[listed++] = Math.abs(byCell[i]);
+					cells[c] = -(listCount + 1);
+					listStart[++listCount] = listed;
+				}
+			}
+			return new ClassificationGrid(bounds, resolution, cells,
+					Arrays.copyOf(listStart, listCount + 1), Arrays.copyOf(lists, listed));
+		}
+	}
+
+	/**
+	 * Classifies the cell holding the point: a record number if the point is
+	 * inside that record, EMPTY if it is inside none, OUTSIDE if it lies
+	 * beyond the grid, or a negative list reference for candidates().
+	 */
+	int classify(double x, double y) {
+		if(!(x >= minX && x <= maxX && y >= minY && y <= maxY))
+			return OUTSIDE;
+		int c = cellWidth > 0 ? Math.min(resolution - 1, (int)((x - minX) / cellWidth)) : 0;
+		int r = cellHeight > 0 ? Math.min(resolution - 1, (int)((y - minY) / cellHeight)) : 0;
+		return cells[r*resolution + c];
+	}
+
+	/**
+	 * Copy of the candidate list a boundary classification refers to.
+	 */
+	int[] candidates(int classification) {
+		int list = -classification - 1;
+		return Arrays.copyOfRange(lists, listStart[list], listStart[list + 1]);
+	}
+
+	long getSizeInBytes() {
+		return 64 + cells.length*4L + listStart.length*4L + lists.length*4L;
+	}
+}
@@ -0,0 +1,253 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hexiong.jdbf.JDBField;
+
+/**
+ * Attribute table of a snapshot, stored column by column with every value
+ * already in its parsed form: whole numbers as longs, decimals as doubles,
+ * logicals as bytes, dates as epoch milliseconds with Long.MIN_VALUE for a
+ * blank date, and text as UTF-8 with an offset per row. Reading a value
+ * indexes the mapped column and boxes it, and gives back objects equal to
+ * what the .dbf tables return for the same row.
+ *
+ * Layout: field and row counts, then per field its 11 byte name, type,
+ * length, decimal count, column kind, a pad byte and the column's offset.
+ * Columns start on eight byte boundaries.
+ */
+public class ColumnDescriptors implements AttributeTable {
+	static final int LONGS = 0;
+	static final int DOUBLES = 1;
+	static final int BOOLEANS = 2;
+	static final int DATES = 3;
+	static final int STRINGS = 4;
+
+	static final int FIELD_SIZE = 24;
+
+	final int recordCount;
+	final Map<String,FieldHandle> fields;
+
+	ColumnDescriptors(ByteBuffer columns) {
+		ByteBuffer bb = columns.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int fieldCount = bb.getInt(0);
+		recordCount = bb.getInt(4);
+
+		fields = new LinkedHashMap<String,FieldHandle>();
+		for(int i = 0; i < fieldCount; i++) {
+			int entry = 8 + i*FIELD_SIZE;
+			int nameLength = 0;
+			while(nameLength < 11 && bb.get(entry + nameLength) != 0)
+				nameLength++;
+			byte[] name = new byte[nameLength];
+			for(int c = 0; c < nameLength; c++)
+				name[c] = bb.get(entry + c);
+
+			bb.position((int)bb.getLong(entry + 16));
+			ByteBuffer column = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+			String fieldName = new String(name, StandardCharsets.ISO_8859_1);
+			fields.put(fieldName, handle(fieldName, bb.get(entry + 14), column));
+		}
+	}
+
+	private FieldHandle handle(final String name, int kind, ByteBuffer column) {
+		switch(kind) {
+		case LONGS:
+			final LongBuffer longs = column.asLongBuffer();
+			return new Handle(name) {
+				Object value(int row) {
+					return Long.valueOf(longs.get(row));
+				}
+			};
+		case DOUBLES:
+			final DoubleBuffer doubles = column.asDoubleBuffer();
+			return new Handle(name) {
+				Object value(int row) {
+					return Double.valueOf(doubles.get(row));
+				}
+			};
+		case BOOLEANS:
+			final ByteBuffer booleans = column;
+			return new Handle(name) {
+				Object value(int row) {
+					return Boolean.valueOf(booleans.get(row) != 0);
+				}
+			};
+		case DATES:
+			final LongBuffer dates = column.asLongBuffer();
+			return new Handle(name) {
+				Object value(int row) {
+					long millis = dates.get(row);
+					return millis == Long.MIN_VALUE ? null : new Date(millis);
+				}
+			};
+		default:
+			final IntBuffer offsets = column.asIntBuffer();
+			final int textStart = (recordCount + 1)*4;
+			final ByteBuffer text = column;
+			return new Handle(name) {
+				Object value(int row) {
+					int start = offsets.get(row);
+					byte[] utf8 = new byte[offsets.get(row + 1) - start];
+					for(int i = 0; i < utf8.length; i++)
+						utf8[i] = text.get(textStart + start + i);
+					return new String(utf8, StandardCharsets.UTF_8);
+				}
+			};
+		}
+	}
+
+	abstract class Handle implements FieldHandle {
+		final String name;
+
+		Handle(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Object get(int recordNumber) {
+			if(recordNumber < 1 || recordNumber > recordCount)
+				throw new IndexOutOfBoundsException("No record " + recordNumber);
+			return value(recordNumber-1);
+		}
+
+		abstract Object value(int row);
+	}
+
+	/**
+	 * The column a field is stored in, following the types JDBField.parse
+	 * returns for it.
+	 */
+	static int kind(JDBField field) {
+		switch(field.getType()) {
+		case 'N':
+		case 'F':
+			return field.getDecimalCount() == 0 ? LONGS : DOUBLES;
+		case 'L':
+			return BOOLEANS;
+		case 'D':
+			return DATES;
+		default:
+			return STRINGS;
+		}
+	}
+
+	/**
+	 * Reads every value of a .dbf and writes the table out in columns.
+	 */
+	static ByteBuffer encode(MappedDescriptors source) throws IOException {
+		int rows = source.recordCount;
+		List<ByteBuffer> columns = new ArrayList<ByteBuffer>();
+		for(MappedDescriptors.Handle field: source.fields.values())
+			columns.add(encode(field, rows));
+
+		long size = align(8 + columns.size()*FIELD_SIZE);
+		long[] offsets = new long[columns.size()];
+		for(int i = 0; i < offsets.length; i++) {
+			offsets[i] = size;
+			size = align(size + columns.get(i).remaining());
+		}
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Attribute columns exceed 2GB");
+
+		ByteBuffer bb = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		bb.putInt(columns.size()).putInt(rows);
+		int i = 0;
+		for(MappedDescriptors.Handle field: source.fields.values()) {
+			int entry = 8 + i*FIELD_SIZE;
+			byte[] name = field.getName().getBytes(StandardCharsets.ISO_8859_1);
+			for(int c = 0; c < Math.min(name.length, 11); c++)
+				bb.put(entry + c, name[c]);
+			bb.put(entry + 11, (byte)field.field.getType());
+			bb.put(entry + 12, (byte)field.field.getLength());
+			bb.put(entry + 13, (byte)field.field.getDecimalCount());
+			bb.put(entry + 14, (byte)kind(field.field));
+			bb.putLong(entry + 16, offsets[i]);
+
+			bb.position((int)offsets[i]);
+			bb.put(columns.get(i));
+			i++;
+		}
+		bb.clear();
+		return bb;
+	}
+
+	private static ByteBuffer encode(MappedDescriptors.Handle field, int rows) {
+		ByteBuffer bb;
+		switch(kind(field.field)) {
+		case LONGS:
+			bb = allocate(rows*8);
+			for(int row = 0; row < rows; row++)
+				bb.putLong(((Long)field.get(row + 1)).longValue());
+			break;
+		case DOUBLES:
+			bb = allocate(rows*8);
+			for(int row = 0; row < rows; row++)
+				bb.putDouble(((Double)field.get(row + 1)).doubleValue());
+			break;
+		case BOOLEANS:
+			bb = allocate(rows);
+			for(int row = 0; row < rows; row++)
+				bb.put(((Boolean)field.get(row + 1)).booleanValue() ? (byte)1 : (byte)0);
+			break;
+		case DATES:
+			bb = allocate(rows*8);
+			for(int row = 0; row < rows; row++) {
+				Date date = (Date)field.get(row + 1);
+				bb.putLong(date == null ? Long.MIN_VALUE : date.getTime());
+			}
+			break;
+		default:
+			byte[][] text = new byte[rows][];
+			int length = 0;
+			for(int row = 0; row < rows; row++) {
+				text[row] = ((String)field.get(row + 1)).getBytes(StandardCharsets.UTF_8);
+				length += text[row].length;
+			}
+			bb = allocate((rows + 1)*4 + length);
+			int offset = 0;
+			for(int row = 0; row < rows; row++) {
+				bb.putInt(offset);
+				offset += text[row].length;
+			}
+			bb.putInt(offset);
+			for(int row = 0; row < rows; row++)
+				bb.put(text[row]);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	private static ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	public FieldHandle getField(String fieldName) {
+		FieldHandle handle = fields.get(fieldName);
+		if(handle == null)
+			throw new IllegalArgumentException("No such field: " + fieldName);
+		return handle;
+	}
+
+	public Object getShapeInfo(int recordNumber, String fieldName) {
+		return getField(fieldName).get(recordNumber);
+	}
+}
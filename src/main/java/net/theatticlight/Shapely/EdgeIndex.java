@@ -0,0 +1,138 @@
+package net.theatticlight.Shapely;
+
+/**
+ * Buckets the edges of a polygon into horizontal slabs over its Y range so a
+ * crossing test only visits the edges whose Y extent overlaps the query
+ * point's slab instead of every edge of every ring.
+ *
+ * Slabs are kept in compressed form: the edges of slab s are the vertex
+ * index pairs in edges[2*slabStart[s]] up to edges[2*slabStart[s+1]].
+ * An edge is listed in every slab it crosses, so tall edges such as those
+ * of long thin polygons would multiply the index; the slab count is halved
+ * until the lists hold at most MAX_ENTRIES_PER_EDGE entries per edge.
+ */
+class EdgeIndex {
+	static final int EDGES_PER_SLAB = 4;
+	static final int MAX_SLABS = 1 << 16;
+	static final int MAX_ENTRIES_PER_EDGE = 8;
+
+	final double minY;
+	final double scale;
+	final int slabCount;
+	final int[] slabStart;
+	final int[] edges;
+
+	EdgeIndex(double[] coords, int[] parts, double minY, double maxY) {
+		int vertexCount = coords.length / 2;
+		int slabs = Math.max(1, Math.min(vertexCount / EDGES_PER_SLAB, MAX_SLABS));
+		while(slabs > 1 && entries(coords, parts, minY, maxY, slabs) > (long)MAX_ENTRIES_PER_EDGE * vertexCount)
+			slabs /= 2;
+		this.minY = minY;
+		this.scale = maxY > minY ? slabs / (maxY - minY) : 0;
+		this.slabCount = slabs;
+
+		int[] counts = new int[slabs + 1];
+		for(int ring = 0; ring < parts.length; ring++) {
+			int start = parts[ring];
+			int end = ring + 1 < parts.length ? parts[ring+1] : vertexCount;
+			for(int i = start, j = end - 1; i < end; j = i++) {
+				double yi = coords[2*i+1];
+				double yj = coords[2*j+1];
+				if(yi == yj)
+					continue;
+				int last = slab(Math.max(yi, yj));
+				for(int s = slab(Math.min(yi, yj)); s <= last; s++)
+					counts[s+1]++;
+			}
+		}
+		for(int s = 0; s < slabs; s++)
+			counts[s+1] += counts[s];
+
+		int[] fill = new int[slabs];
+		int[] edges = new int[counts[slabs]*2];
+		for(int ring = 0; ring < parts.length; ring++) {
+			int start = parts[ring];
+			int end = ring + 1 < parts.length ? parts[ring+1] : vertexCount;
+			for(int i = start, j = end - 1; i < end; j = i++) {
+				double yi = coords[2*i+1];
+				double yj = coords[2*j+1];
+				if(yi == yj)
+					continue;
+				int last = slab(Math.max(yi, yj));
+				for(int s = slab(Math.min(yi, yj)); s <= last; s++) {
+					int e = 2*(counts[s] + fill[s]++);
+					edges[e] = i;
+					edges[e+1] = j;
+				}
+			}
+		}
+		this.slabStart = counts;
+		this.edges = edges;
+	}
+
+	/**
+	 * Total slab list entries for the given slab count, one per slab each
+	 * non-horizontal edge crosses.
+	 */
+	private static long entries(double[] coords, int[] parts, double minY, double maxY, int slabs) {
+		double scale = maxY > minY ? slabs / (maxY - minY) : 0;
+		int vertexCount = coords.length / 2;
+		long entries = 0;
+		for(int ring = 0; ring < parts.length; ring++) {
+			int start = parts[ring];
+			int end = ring + 1 < parts.length ? parts[ring+1] : vertexCount;
+			for(int i = start, j = end - 1; i < end; j = i++) {
+				double yi = coords[2*i+1];
+				double yj = coords[2*j+1];
+				if(yi != yj)
+					entries += slab(Math.max(yi, yj), minY, scale, slabs) - slab(Math.min(yi, yj), minY, scale, slabs) + 1;
+			}
+		}
+		return entries;
+	}
+
+	private static int slab(double y, double minY, double scale, int slabCount) {
+		int s = (int)((y - minY) * scale);
+		return s < 0 ? 0 : s >= slabCount ? slabCount - 1 : s;
+	}
+
+	private int slab(double y) {
+		int s = (int)((y - minY) * scale);
+		return s < 0 ? 0 : s >= slabCount ? slabCount - 1 : s;
+	}
+
+	/**
+	 * Same even-odd crossing test as Polygon.contains, restricted to the
+	 * edges in the point's slab. The slab lookup is monotonic in Y, so every
+	 * edge that straddles the ray is listed in the slab the ray falls in.
+	 */
+	boolean contains(double[] coords, double x, double y) {
+		int s = slab(y);
+		boolean inside = false;
+		for(int e = 2*slabStart[s], end = 2*slabStart[s+1]; e < end; e += 2) {
+			int i = edges[e];
+			int j = edges[e+1];
+			double yi = coords[2*i+1];
+			double yj = coords[2*j+1];
+			if((yi > y) != (yj > y)) {
+				double xi = coords[2*i];
+				double xj = coords[2*j];
+				if(x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+					inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Number of edges a containment test at this Y looks at.
+	 */
+	int edgesAt(double y) {
+		int s = slab(y);
+		return slabStart[s+1] - slabStart[s];
+	}
+
+	long getSizeInBytes() {
+		return 48 + slabStart.length*4L + edges.length*4L;
+	}
+}
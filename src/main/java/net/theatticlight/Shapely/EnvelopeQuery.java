@@ -0,0 +1,102 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.Record.UncheckedShapeException;
+
+/**
+ * Iterates over the records whose bounding boxes intersect an envelope.
+ * The packed index is walked one node at a time as records are pulled, so
+ * the matches are never gathered up front. Candidates are kept or dropped
+ * on the bounding box in their header, and the records returned are not
+ * decoded until the consumer asks for their shapes. Records listed under
+ * several nodes are returned once.
+ */
+class EnvelopeQuery implements Iterator<Record> {
+	final ShapeFile shapeFile;
+	final PackedSpatialIndex index;
+	final double minX, minY, maxX, maxY;
+	final BitSet seen = new BitSet();
+
+	int node = 0;
+	int next = 0;
+	int end = 0;
+	Record pending;
+
+	EnvelopeQuery(ShapeFile shapeFile, PackedSpatialIndex index, double minX, double minY, double maxX, double maxY) {
+		this.shapeFile = shapeFile;
+		this.index = index;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	public boolean hasNext() {
+		if(pending == null)
+			pending = advance();
+		return pending != null;
+	}
+
+	public Record next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		Record record = pending;
+		pending = null;
+		return record;
+	}
+
+	private Record advance() {
+		while(true) {
+			while(next < end) {
+				int id = index.recordIDs[next++];
+				if(seen.get(id))
+					continue;
+				seen.set(id);
+				Record record = read(id);
+				if(intersects(record))
+					return record;
+			}
+			if(!enterNextNode())
+				return null;
+		}
+	}
+
+	/**
+	 * Moves to the next node in depth first order whose bounds meet the
+	 * envelope, skipping the subtrees of those that don't.
+	 */
+	private boolean enterNextNode() {
+		while(node < index.nodeCount) {
+			int b = node*4;
+			if(maxX < index.bounds[b] || maxY < index.bounds[b+1] || minX > index.bounds[b+2] || minY > index.bounds[b+3]) {
+				node = index.subtreeEnd[node];
+				continue;
+			}
+			next = index.recordStart[node];
+			end = index.recordStart[node+1];
+			node++;
+			return true;
+		}
+		return false;
+	}
+
+	private Record read(int recordNumber) {
+		try {
+			return shapeFile.getRecord(recordNumber);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ShapeException e) {
+			throw new UncheckedShapeException(e);
+		}
+	}
+
+	private boolean intersects(Record record) {
+		return record.minX <= maxX && record.minY <= maxY && record.maxX >= minX && record.maxY >= minY;
+	}
+}
@@ -3,127 +3,240 @@ package net.theatticlight.Shapely;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.event.MouseMotionAdapter;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.BorderFactory;
 import javax.swing.JFrame;
-import javax.swing.JOptionPane;
 import javax.swing.JPanel;
-
-import net.theatticlight.Shapely.Record.Point;
-import net.theatticlight.Shapely.Record.Polygon;
+import javax.swing.SwingUtilities;
 
 public class GraphicalTest {
-	
+
+	/**
+	 * Shows the layer drawn by a MapRenderer. The map is rendered into an
+	 * image on a background thread whenever the view changes and painting
+	 * only copies that image, so the event thread never decodes or draws
+	 * records itself. Hover lookups run on another background thread, and
+	 * only the answer for the latest mouse position is shown. Scroll to
+	 * zoom, drag to pan.
+	 */
 	static class MyPanel extends JPanel {
-		ShapeFile shapeFile;
-		public AtomicInteger X, Y;
-		boolean firstWrite = true;
-		String field;
+		private static final long serialVersionUID = 1L;
+		static final int STATUS_HEIGHT = 40;
+
+		final ShapeFile shapeFile;
+		final MapRenderer renderer;
+		final String field;
+		final ExecutorService renderThread = Executors.newSingleThreadExecutor(daemon("Shapely render"));
+		final ExecutorService lookupThread = Executors.newSingleThreadExecutor(daemon("Shapely lookup"));
+		final AtomicLong renderRequest = new AtomicLong();
+		final AtomicLong lookupRequest = new AtomicLong();
+
+		// View state, only touched on the event thread.
+		double minX, maxY, unitsPerPixel;
+		BufferedImage map;
+		double mapMinX, mapMaxY, mapUnitsPerPixel;
+		String status = "Rendering...";
+		int dragX, dragY;
 
 	    public MyPanel(ShapeFile shapeFile, String field) {
 	    	this.shapeFile = shapeFile;
-	    	this.X = new AtomicInteger(0);
-	    	this.Y = new AtomicInteger(0);
-	        setBorder(BorderFactory.createLineBorder(Color.black));
+	    	this.renderer = new MapRenderer(shapeFile);
 	        this.field = field;
+	        setBorder(BorderFactory.createLineBorder(Color.black));
+
+	        MouseAdapter mouse = new MouseAdapter() {
+	        	public void mouseMoved(MouseEvent evt) {
+	        		lookup(evt.getX(), evt.getY());
+	        	}
+
+	        	public void mousePressed(MouseEvent evt) {
+	        		dragX = evt.getX();
+	        		dragY = evt.getY();
+	        	}
+
+	        	public void mouseDragged(MouseEvent evt) {
+	        		minX -= (evt.getX() - dragX) * unitsPerPixel;
+	        		maxY += (evt.getY() - dragY) * unitsPerPixel;
+	        		dragX = evt.getX();
+	        		dragY = evt.getY();
+	        		repaint();
+	        		render();
+	        	}
+
+	        	public void mouseWheelMoved(MouseWheelEvent evt) {
+	        		double x = toX(evt.getX()), y = toY(evt.getY());
+	        		unitsPerPixel *= Math.pow(1.25, evt.getPreciseWheelRotation());
+	        		minX = x - evt.getX() * unitsPerPixel;
+	        		maxY = y + (evt.getY() - STATUS_HEIGHT) * unitsPerPixel;
+	        		repaint();
+	        		render();
+	        	}
+	        };
+	        addMouseListener(mouse);
+	        addMouseMotionListener(mouse);
+	        addMouseWheelListener(mouse);
+	        addComponentListener(new ComponentAdapter() {
+	        	public void componentResized(ComponentEvent evt) {
+	        		if(unitsPerPixel == 0)
+	        			fitLayer();
+	        		render();
+	        	}
+	        });
+	    }
+
+	    static ThreadFactory daemon(final String name) {
+	    	return new ThreadFactory() {
+	    		public Thread newThread(Runnable task) {
+	    			Thread thread = new Thread(task, name);
+	    			thread.setDaemon(true);
+	    			return thread;
+	    		}
+	    	};
 	    }
 
 	    public Dimension getPreferredSize() {
-	        return new Dimension(600,640);
+	        return new Dimension(1000,740);
 	    }
 
-	    public void paintComponent(Graphics g) {
-//	        super.paintComponent(g);       
-	
-			double xRatio = 1000 / (shapeFile.getBounds()[2] - shapeFile.getBounds()[0]);
-			double yRatio = 700 / (shapeFile.getBounds()[3] - shapeFile.getBounds()[1]); 
-        
-			// Draw Text
-			int downshift = 40;
-			g.clearRect(0, 0, 1000, downshift);
-			double x = X.doubleValue() / xRatio + shapeFile.getBounds()[0];
-			double y = (700-(Y.doubleValue()-downshift)) / yRatio + shapeFile.getBounds()[1];
-
-			String TZs = "";
-			try
-			{
-				for(Object tz: shapeFile.getInfoAtPoint(new Record.Vect(x,y), field))
-					TZs = TZs + tz + ", ";
-			} catch (Exception e) {
-				System.out.println("Error looking up records: " + e.getMessage());
-				e.printStackTrace();
-			}
-			g.drawString("X: " + x + " Y: " + y + " Time Zone: " + TZs,10,20);
-			
-			if(firstWrite)
-			{
-				for(int i = 1; i < shapeFile.getRecordCount()+1;i++)
-				{
-					Record record;
-					try
-					{
-		        		record = shapeFile.getRecord(i);
-		        	} catch (Exception e) {
-		        		System.out.println("Failed to load record: " + i);
-		        		System.out.println("Skipping.");
-		        		break;
-		        	}
-					Polygon polygon = ((Polygon)record.shape);
-					
-					for(int j = 1; j < polygon.points.length; j++)
-					{
-						Point point1 = polygon.points[j-1];
-						Point point2 = polygon.points[j];
-						g.drawLine(	(int)((point1.X - shapeFile.getBounds()[0]) * xRatio),
-	        						(700-(int)((point1.Y - shapeFile.getBounds()[1]) * yRatio)) + downshift,
-	        						(int)((point2.X - shapeFile.getBounds()[0]) * xRatio),
-	        						(700-(int)((point2.Y - shapeFile.getBounds()[1]) * yRatio)) + downshift);
-					}
-				}
-			}
+	    void fitLayer() {
+	    	double[] bounds = shapeFile.getBounds();
+	    	int width = Math.max(1, getWidth()), height = Math.max(1, getHeight() - STATUS_HEIGHT);
+	    	unitsPerPixel = Math.max((bounds[2] - bounds[0]) / width, (bounds[3] - bounds[1]) / height);
+	    	if(!(unitsPerPixel > 0))
+	    		unitsPerPixel = 1;
+	    	minX = bounds[0];
+	    	maxY = bounds[3];
+	    }
+
+	    double toX(int px) {
+	    	return minX + px * unitsPerPixel;
+	    }
 
-			firstWrite = false;
-	    }  
+	    double toY(int py) {
+	    	return maxY - (py - STATUS_HEIGHT) * unitsPerPixel;
+	    }
+
+	    /**
+	     * Renders the current view in the background. Requests made while a
+	     * render is running replace each other, so only the latest is drawn.
+	     */
+	    void render() {
+	    	final long request = renderRequest.incrementAndGet();
+	    	final int width = getWidth(), height = getHeight() - STATUS_HEIGHT;
+	    	final double minX = this.minX, maxY = this.maxY, unitsPerPixel = this.unitsPerPixel;
+	    	if(width <= 0 || height <= 0)
+	    		return;
+	    	renderThread.execute(new Runnable() {
+	    		public void run() {
+	    			if(renderRequest.get() != request)
+	    				return;
+	    			try {
+	    				final BufferedImage image = renderer.render(width, height, minX, maxY, unitsPerPixel);
+	    				SwingUtilities.invokeLater(new Runnable() {
+	    					public void run() {
+	    						map = image;
+	    						mapMinX = minX;
+	    						mapMaxY = maxY;
+	    						mapUnitsPerPixel = unitsPerPixel;
+	    						repaint();
+	    					}
+	    				});
+	    			} catch (Exception e) {
+	    				showStatus("Error rendering: " + e);
+	    			}
+	    		}
+	    	});
+	    }
+
+	    void lookup(int px, int py) {
+	    	final long request = lookupRequest.incrementAndGet();
+	    	final double x = toX(px), y = toY(py);
+	    	lookupThread.execute(new Runnable() {
+	    		public void run() {
+	    			if(lookupRequest.get() != request)
+	    				return;
+	    			String values = "";
+	    			try {
+	    				List<Object> infos = shapeFile.getInfoAtPoint(new Record.Vect(x, y), field);
+	    				for(Object info: infos)
+	    					values = values + info + ", ";
+	    			} catch (Exception e) {
+	    				values = "error " + e;
+	    			}
+	    			if(lookupRequest.get() == request)
+	    				showStatus("X: " + x + " Y: " + y + " " + field + ": " + values);
+	    		}
+	    	});
+	    }
+
+	    void showStatus(final String text) {
+	    	SwingUtilities.invokeLater(new Runnable() {
+	    		public void run() {
+	    			status = text;
+	    			repaint(0, 0, getWidth(), STATUS_HEIGHT);
+	    		}
+	    	});
+	    }
+
+	    public void paintComponent(Graphics g) {
+	    	super.paintComponent(g);
+	    	if(map != null) {
+	    		// Until the new render arrives, stretch the last one to the view.
+	    		double scale = mapUnitsPerPixel / unitsPerPixel;
+	    		int x = (int)Math.round((mapMinX - minX) / unitsPerPixel);
+	    		int y = STATUS_HEIGHT + (int)Math.round((maxY - mapMaxY) / unitsPerPixel);
+	    		g.drawImage(map, x, y, (int)Math.round(map.getWidth() * scale), (int)Math.round(map.getHeight() * scale), null);
+	    	}
+	    	g.clearRect(0, 0, getWidth(), STATUS_HEIGHT);
+	    	g.setColor(Color.BLACK);
+	    	g.drawString(status, 10, 20);
+	    }
 	}
-	
+
 	static MyPanel panel;
-	
+
 	static void showPolygons(ShapeFile shapeFile, String field)
 	{
 		JFrame frame = new JFrame();
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		panel = new MyPanel(shapeFile, field);
-		panel.addMouseMotionListener(new MouseMotionAdapter() {
-			public void mouseMoved(MouseEvent evt) {
-				panel.X.set(evt.getPoint().x);
-				panel.Y.set(evt.getPoint().y);
-				panel.paint(panel.getGraphics());
-			}
-		});
 		frame.setSize(1000, 1000);
 		frame.add(panel);
 		frame.setVisible(true);
 	}
 
-	
+
 	public static void main(String[] args)
 	{
 		try
 		{
 			long time1 = System.currentTimeMillis();
-			ShapeFile shapeFile = new ShapeFile(args[0]);
-			
+			final ShapeFile shapeFile = new ShapeFile(args[0], new ShapeFile.Options().mapShapes(true));
+			final String field = args[1];
+
 			long time2 = System.currentTimeMillis();
 			System.out.println("Took " + (time2 - time1) + " milisec to load shapefile.");
-			
-			showPolygons(shapeFile, args[1]);
-			
+
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					showPolygons(shapeFile, field);
+				}
+			});
+
 			long time3 = System.currentTimeMillis();
 			System.out.println("Took " + (time3 - time2) + " milisec to display shapefile.");
-			
+
 			System.out.println("Done.");
 		}
 		catch (Exception e)
@@ -0,0 +1,217 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import net.theatticlight.Shapely.AttributeTable.FieldHandle;
+import net.theatticlight.Shapely.Record.ShapeException;
+
+/**
+ * Answers point lookups against several layers at once, such as time zones,
+ * countries and admin regions queried for the same coordinates.
+ *
+ * With a result cache, one entry per grid cell holds the matches of every
+ * registered layer, so a repeated point costs a single cache probe however
+ * many layers there are. On a miss each layer whose bounds hold the point
+ * is searched once, bypassing the layer's own result cache, and the answers
+ * are stored together. Layers must be registered before the first lookup.
+ */
+public class LayerSet {
+	/**
+	 * The layers and attribute fields a lookup reports, resolved once for
+	 * repeated calls.
+	 */
+	public static class Query {
+		final String[] names;
+		final int[] layers;
+		final FieldHandle[] fields;
+
+		Query(String[] names, int[] layers, FieldHandle[] fields) {
+			this.names = names;
+			this.layers = layers;
+			this.fields = fields;
+		}
+	}
+
+	final Map<String,Integer> layerNumbers = new HashMap<String,Integer>();
+	final List<ShapeFile> layers = new ArrayList<ShapeFile>();
+	final ResultCache resultCache;
+	final int resultCacheLayer;
+	private volatile ShapeFile[] sealed;
+	private double[] bounds;
+	private double[] layerBounds;
+
+	public LayerSet() {
+		this(null, 0);
+	}
+
+	/**
+	 * @param resultCache cache for the combined answers, or null
+	 * @param layer number the set's entries are kept under, distinct from
+	 * that of any single layer sharing the same cache
+	 */
+	public LayerSet(ResultCache resultCache, int layer) {
+		this.resultCache = resultCache;
+		this.resultCacheLayer = layer;
+	}
+
+	public synchronized LayerSet add(String name, ShapeFile layer) {
+		if(sealed != null)
+			throw new IllegalStateException("Layers must be added before the first lookup");
+		if(layerNumbers.containsKey(name))
+			throw new IllegalArgumentException("Layer already registered: " + name);
+		layerNumbers.put(name, layers.size());
+		layers.add(layer);
+		return this;
+	}
+
+	public ShapeFile getLayer(String name) {
+		Integer layer = layerNumbers.get(name);
+		return layer == null ? null : layers.get(layer);
+	}
+
+	public int getLayerCount() {
+		return layers.size();
+	}
+
+	private ShapeFile[] layers() {
+		ShapeFile[] layers = sealed;
+		if(layers == null) {
+			synchronized(this) {
+				layers = sealed;
+				if(layers == null) {
+					layers = this.layers.toArray(new ShapeFile[this.layers.size()]);
+					layerBounds = new double[layers.length*4];
+					for(int layer = 0; layer < layers.length; layer++)
+						System.arraycopy(layers[layer].getBounds(), 0, layerBounds, layer*4, 4);
+					bounds = unionBounds(layers);
+					sealed = layers;
+				}
+			}
+		}
+		return layers;
+	}
+
+	private static double[] unionBounds(ShapeFile[] layers) {
+		double[] union = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for(ShapeFile layer: layers) {
+			double[] b = layer.getBounds();
+			union[0] = Math.min(union[0], b[0]);
+			union[1] = Math.min(union[1], b[1]);
+			union[2] = Math.max(union[2], b[2]);
+			union[3] = Math.max(union[3], b[3]);
+		}
+		return union;
+	}
+
+	/**
+	 * Resolves a map of layer names to attribute field names. Results are
+	 * reported in the map's iteration order.
+	 */
+	public Query prepare(Map<String,String> fields) {
+		String[] queryNames = new String[fields.size()];
+		int[] queryLayers = new int[fields.size()];
+		FieldHandle[] handles = new FieldHandle[fields.size()];
+		int i = 0;
+		for(Map.Entry<String,String> entry: fields.entrySet()) {
+			Integer layer = layerNumbers.get(entry.getKey());
+			if(layer == null)
+				throw new IllegalArgumentException("No such layer: " + entry.getKey());
+			queryNames[i] = entry.getKey();
+			queryLayers[i] = layer;
+			handles[i] = layers.get(layer).getField(entry.getValue());
+			i++;
+		}
+		return new Query(queryNames, queryLayers, handles);
+	}
+
+	public Map<String,List<Object>> getInfoAtPoint(Record.XY xy, Map<String,String> fields) throws IOException, ShapeException {
+		return getInfoAtPoint(xy, prepare(fields));
+	}
+
+	/**
+	 * Each queried layer's attribute values for the records containing the
+	 * point, keyed on layer name.
+	 */
+	public Map<String,List<Object>> getInfoAtPoint(Record.XY xy, Query query) throws IOException, ShapeException {
+		return infoAtPoint(xy.getX(), xy.getY(), query);
+	}
+
+	private Map<String,List<Object>> infoAtPoint(double x, double y, Query query) throws IOException, ShapeException {
+		ShapeFile[] layers = layers();
+		Map<String,List<Object>> infos = new LinkedHashMap<String,List<Object>>();
+		int[] cached = resultCache == null ? null : cachedRecordNumbersAtPoint(layers, x, y);
+		for(int i = 0; i < query.layers.length; i++) {
+			int layer = query.layers[i];
+			List<Object> values;
+			if(cached != null) {
+				values = new ArrayList<Object>(cached[layer+1] - cached[layer]);
+				for(int r = cached[layer]; r < cached[layer+1]; r++)
+					values.add(query.fields[i].get(cached[r]));
+			}
+			else {
+				int[] matches = inBounds(layer, x, y) ? layers[layer].recordNumbersAtPoint(x, y) : ShapeFile.NO_RECORDS;
+				values = new ArrayList<Object>(matches.length);
+				for(int id: matches)
+					values.add(query.fields[i].get(id));
+			}
+			infos.put(query.names[i], values);
+		}
+		return infos;
+	}
+
+	/**
+	 * Matches of every layer at the point, packed as layer count + 1 offsets
+	 * into the array followed by each layer's record numbers in turn.
+	 */
+	private int[] cachedRecordNumbersAtPoint(ShapeFile[] layers, double x, double y) throws IOException, ShapeException {
+		int[] packed = resultCache.getShared(resultCacheLayer, x, y);
+		if(packed != null)
+			return packed;
+
+		int[][] matches = new int[layers.length][];
+		int size = layers.length + 1;
+		for(int layer = 0; layer < layers.length; layer++) {
+			matches[layer] = inBounds(layer, x, y) ? layers[layer].matchRecordsAtPoint(x, y) : ShapeFile.NO_RECORDS;
+			size += matches[layer].length;
+		}
+		packed = new int[size];
+		int next = layers.length + 1;
+		for(int layer = 0; layer < layers.length; layer++) {
+			packed[layer] = next;
+			System.arraycopy(matches[layer], 0, packed, next, matches[layer].length);
+			next += matches[layer].length;
+		}
+		packed[layers.length] = next;
+		resultCache.putShared(resultCacheLayer, x, y, packed);
+		return packed;
+	}
+
+	private boolean inBounds(int layer, double x, double y) {
+		int b = layer*4;
+		return x >= layerBounds[b] && y >= layerBounds[b+1] && x <= layerBounds[b+2] && y <= layerBounds[b+3];
+	}
+
+	public List<Map<String,List<Object>>> getInfoAtPoints(double[] xs, double[] ys, Map<String,String> fields) throws IOException, ShapeException {
+		return getInfoAtPoints(xs, ys, prepare(fields), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Looks up a batch of points against every queried layer. The points are
+	 * ordered along a Z curve over all layers' bounds and spread over the
+	 * pool, so each worker answers nearby points for all layers in turn.
+	 */
+	public List<Map<String,List<Object>>> getInfoAtPoints(double[] xs, double[] ys, final Query query, ForkJoinPool pool) throws IOException, ShapeException {
+		layers();
+		return new BatchLookup<Map<String,List<Object>>>(xs, ys, bounds, pool.getParallelism()) {
+			Map<String,List<Object>> lookup(double x, double y) throws IOException, ShapeException {
+				return infoAtPoint(x, y, query);
+			}
+		}.run(pool);
+	}
+}
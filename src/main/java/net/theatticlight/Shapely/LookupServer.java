@@ -0,0 +1,612 @@
+package net.theatticlight.Shapely;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.theatticlight.Shapely.AttributeTable.FieldHandle;
+import net.theatticlight.Shapely.Record.ShapeException;
+
+/**
+ * Serves point lookups on a ShapeFile over HTTP, using only the JDK's
+ * built in server. Responses are JSON.
+ *
+ *	GET /point?x=..&amp;y=..[&amp;field=..]   the values for one point
+ *	POST /batch[?field=..]            one "x,y" line per point in the body,
+ *	                                  answered as an array in the same order
+ *
+ * Exchanges run on virtual threads where the JDK has them and on a fixed
+ * pool otherwise. At most maxPending requests are admitted at a time; the
+ * rest are turned away at once with 503 so an overloaded server sheds load
+ * instead of queueing without bound. Identical single point requests that
+ * arrive while one is being answered wait for that answer rather than
+ * repeating the lookup. Batches larger than the byte or point limits are
+ * refused with 413 as they are read.
+ *
+ * The JDK server sends headers and body in separate writes, which Nagle's
+ * algorithm holds back for a delayed ACK on kept alive connections, adding
+ * tens of milliseconds to every response. Run with
+ * -Dsun.net.httpserver.nodelay=true to avoid that; the property applies to
+ * every HttpServer in the JVM, so it is left to the caller except in main.
+ */
+public class LookupServer implements Closeable {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final int DEFAULT_MAX_PENDING = 1024;
+	static final long DEFAULT_MAX_BATCH_BYTES = 4L << 20;
+	static final int DEFAULT_MAX_BATCH_POINTS = 100000;
+	static final int MAX_LINE = 256;
+
+	/**
+	 * A batch over the size limits, answered with 413.
+	 */
+	static class TooLargeException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		TooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A point lookup in flight, keyed for coalescing.
+	 */
+	static final class PointKey {
+		final String field;
+		final long x, y;
+
+		PointKey(String field, double x, double y) {
+			this.field = field;
+			this.x = Double.doubleToLongBits(x);
+			this.y = Double.doubleToLongBits(y);
+		}
+
+		public int hashCode() {
+			long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL;
+			return (int)(h ^ (h >>> 32)) ^ field.hashCode();
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof PointKey))
+				return false;
+			PointKey key = (PointKey)o;
+			return key.x == x && key.y == y && key.field.equals(field);
+		}
+	}
+
+	/**
+	 * Counts admitted exchanges and marks those over the limit, which are
+	 * run straight away on the dispatching thread to send their 503.
+	 */
+	final class AdmissionExecutor implements Executor {
+		final ExecutorService workers;
+		final ThreadLocal<Boolean> rejecting = new ThreadLocal<Boolean>();
+
+		AdmissionExecutor(ExecutorService workers) {
+			this.workers = workers;
+		}
+
+		public void execute(final Runnable exchange) {
+			if(pending.incrementAndGet() > maxPending) {
+				pending.decrementAndGet();
+				rejected.increment();
+				rejecting.set(Boolean.TRUE);
+				try {
+					exchange.run();
+				} finally {
+					rejecting.remove();
+				}
+				return;
+			}
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						exchange.run();
+					} finally {
+						pending.decrementAndGet();
+					}
+				}
+			});
+		}
+
+		boolean rejecting() {
+			return rejecting.get() != null;
+		}
+	}
+
+	final ShapeFile shapeFile;
+	final String defaultField;
+	final int maxPending;
+	volatile long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	volatile int maxBatchPoints = DEFAULT_MAX_BATCH_POINTS;
+	final HttpServer server;
+	final AdmissionExecutor executor;
+	final AtomicInteger pending = new AtomicInteger();
+	final LongAdder rejected = new LongAdder();
+	final LongAdder coalesced = new LongAdder();
+	final Map<String,FieldHandle> fields = new ConcurrentHashMap<String,FieldHandle>();
+	final ConcurrentHashMap<PointKey,FutureTask<List<Object>>> inFlight = new ConcurrentHashMap<PointKey,FutureTask<List<Object>>>();
+
+	public LookupServer(ShapeFile shapeFile, String defaultField, InetSocketAddress address) throws IOException {
+		this(shapeFile, defaultField, address, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Binds the server; call start to begin answering.
+	 *
+	 * @param defaultField field reported when a request names none
+	 * @param maxPending requests admitted at once, running or queued
+	 */
+	public LookupServer(ShapeFile shapeFile, String defaultField, InetSocketAddress address, int maxPending) throws IOException {
+		if(maxPending <= 0)
+			throw new IllegalArgumentException("Pending limit must be positive: " + maxPending);
+		this.shapeFile = shapeFile;
+		this.defaultField = defaultField;
+		this.maxPending = maxPending;
+		fieldHandle(defaultField);
+
+		server = HttpServer.create(address, 0);
+		executor = new AdmissionExecutor(newWorkers());
+		server.setExecutor(executor);
+		server.createContext("/point", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, false);
+			}
+		});
+		server.createContext("/batch", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, true);
+			}
+		});
+	}
+
+	/**
+	 * A virtual thread per task executor when running on a JDK that has one,
+	 * looked up reflectively so the library still runs on Java 8, else a
+	 * pool sized to the machine.
+	 */
+	static ExecutorService newWorkers() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+		}
+	}
+
+	/**
+	 * Limits the body size and point count of a batch request. Defaults are
+	 * 4 MB and 100000 points.
+	 */
+	public LookupServer maxBatch(long bytes, int points) {
+		if(bytes <= 0 || points <= 0)
+			throw new IllegalArgumentException("Batch limits must be positive: " + bytes + " bytes, " + points + " points");
+		this.maxBatchBytes = bytes;
+		this.maxBatchPoints = points;
+		return this;
+	}
+
+	public LookupServer start() {
+		server.start();
+		return this;
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Stops accepting requests, waits briefly for those in progress and shuts
+	 * down the worker threads. The ShapeFile is left open.
+	 */
+	public void close() {
+		server.stop(1);
+		executor.workers.shutdown();
+		try {
+			executor.workers.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private FieldHandle fieldHandle(String name) {
+		FieldHandle field = fields.get(name);
+		if(field == null) {
+			field = shapeFile.getField(name);
+			fields.put(name, field);
+		}
+		return field;
+	}
+
+	private void serve(HttpExchange exchange, boolean batch) throws IOException {
+		try {
+			if(executor.rejecting()) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "{\"error\":\"overloaded\"}");
+				return;
+			}
+			Map<String,String> query = parseQuery(exchange.getRequestURI());
+			String fieldName = query.containsKey("field") ? query.get("field") : defaultField;
+			FieldHandle field = fieldHandle(fieldName);
+
+			StringBuilder json = new StringBuilder();
+			if(batch) {
+				if(!"POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, "{\"error\":\"batches are POSTed\"}");
+					return;
+				}
+				String length = exchange.getRequestHeaders().getFirst("Content-Length");
+				if(length != null && Long.parseLong(length.trim()) > maxBatchBytes)
+					throw new TooLargeException("Batch body over " + maxBatchBytes + " bytes");
+				double[][] points = parsePoints(exchange.getRequestBody(), maxBatchBytes, maxBatchPoints);
+				List<List<Object>> results = shapeFile.getInfoAtPoints(points[0], points[1], field, ForkJoinPool.commonPool());
+				json.append('[');
+				for(int i = 0; i < results.size(); i++) {
+					if(i > 0)
+						json.append(',');
+					appendValues(json, results.get(i));
+				}
+				json.append(']');
+			}
+			else {
+				double x = parseCoordinate(query, "x");
+				double y = parseCoordinate(query, "y");
+				appendValues(json, coalescedLookup(fieldName, field, x, y));
+			}
+			respond(exchange, 200, json.toString());
+		} catch (TooLargeException e) {
+			respond(exchange, 413, "{\"error\":" + quote(e.getMessage()) + "}");
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}");
+		} catch (Exception e) {
+			respond(exchange, 500, "{\"error\":" + quote(String.valueOf(e)) + "}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Looks up a point, sharing the work with any identical lookup already
+	 * under way.
+	 */
+	private List<Object> coalescedLookup(String fieldName, final FieldHandle field, final double x, final double y) throws IOException, ShapeException {
+		PointKey key = new PointKey(fieldName, x, y);
+		FutureTask<List<Object>> task = new FutureTask<List<Object>>(new Callable<List<Object>>() {
+			public List<Object> call() throws IOException, ShapeException {
+				return shapeFile.getInfoAtPoint(new Record.Vect(x, y), field);
+			}
+		});
+		FutureTask<List<Object>> running = inFlight.putIfAbsent(key, task);
+		if(running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}
+		else
+			coalesced.increment();
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a coalesced lookup");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof ShapeException)
+				throw (ShapeException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	static Map<String,String> parseQuery(URI uri) throws IOException {
+		Map<String,String> query = new HashMap<String,String>();
+		String raw = uri.getRawQuery();
+		if(raw == null)
+			return query;
+		for(String pair: raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if(eq > 0)
+				query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return query;
+	}
+
+	static double parseCoordinate(Map<String,String> query, String name) {
+		String value = query.get(name);
+		if(value == null)
+			throw new IllegalArgumentException("Missing " + name);
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * Reads "x,y" lines, also accepting whitespace between the two, into
+	 * arrays of X and Y values as the body streams in. Blank lines are
+	 * skipped. Stops with TooLargeException as soon as the body passes
+	 * maxBytes or holds more than maxPoints points.
+	 */
+	static double[][] parsePoints(InputStream in, long maxBytes, int maxPoints) throws IOException, TooLargeException {
+		double[] xs = new double[64];
+		double[] ys = new double[64];
+		int count = 0;
+		StringBuilder line = new StringBuilder();
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		int read;
+		while((read = in.read(buffer)) >= 0) {
+			total += read;
+			if(total > maxBytes)
+				throw new TooLargeException("Batch body over " + maxBytes + " bytes");
+			for(int i = 0; i < read; i++) {
+				char c = (char)(buffer[i] & 0xFF);
+				if(c != '\n') {
+					if(line.length() == MAX_LINE)
+						throw new IllegalArgumentException("Line over " + MAX_LINE + " characters");
+					line.append(c);
+					continue;
+				}
+				if(parsePoint(line, xs, ys, count)) {
+					if(++count > maxPoints)
+						throw new TooLargeException("Batch over " + maxPoints + " points");
+					if(count == xs.length) {
+						xs = Arrays.copyOf(xs, count * 2);
+						ys = Arrays.copyOf(ys, count * 2);
+					}
+				}
+				line.setLength(0);
+			}
+		}
+		if(parsePoint(line, xs, ys, count) && ++count > maxPoints)
+			throw new TooLargeException("Batch over " + maxPoints + " points");
+		return new double[][]{Arrays.copyOf(xs, count), Arrays.copyOf(ys, count)};
+	}
+
+	/**
+	 * Parses one line into xs[at] and ys[at]; false for a blank line.
+	 */
+	private static boolean parsePoint(CharSequence text, double[] xs, double[] ys, int at) {
+		String line = text.toString().trim();
+		if(line.isEmpty())
+			return false;
+		int split = 0;
+		while(split < line.length() && line.charAt(split) != ',' && !Character.isWhitespace(line.charAt(split)))
+			split++;
+		int next = split;
+		while(next < line.length() && (line.charAt(next) == ',' || Character.isWhitespace(line.charAt(next))))
+			next++;
+		if(split == line.length() || next == line.length())
+			throw new IllegalArgumentException("Expected x,y: " + line);
+		try {
+			xs[at] = Double.parseDouble(line.substring(0, split));
+			ys[at] = Double.parseDouble(line.substring(next));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected x,y: " + line);
+		}
+		return true;
+	}
+
+	static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) > 0)
+			body.write(buffer, 0, read);
+		return new String(body.toByteArray(), UTF8);
+	}
+
+	static void appendValues(StringBuilder json, List<Object> values) {
+		json.append('[');
+		for(int i = 0; i < values.size(); i++) {
+			if(i > 0)
+				json.append(',');
+			Object value = values.get(i);
+			// JSON has no NaN or Infinity; a non-finite number goes out as null.
+			if(value == null || !finite(value))
+				json.append("null");
+			else if(value instanceof Number || value instanceof Boolean)
+				json.append(value);
+			else
+				json.append(quote(value.toString().trim()));
+		}
+		json.append(']');
+	}
+
+	private static boolean finite(Object value) {
+		if(value instanceof Double || value instanceof Float)
+			return !Double.isNaN(((Number)value).doubleValue()) && !Double.isInfinite(((Number)value).doubleValue());
+		return true;
+	}
+
+	static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if(c < 0x20)
+				quoted.append(String.format("\\u%04x", (int)c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * Drives a server on this machine from client threads and reports
+	 * throughput and latency percentiles. With a batch size above one the
+	 * clients POST batches of that many points.
+	 */
+	static void loadTest(final LookupServer server, int threads, int seconds, final int batchSize) throws InterruptedException {
+		final QueryMetrics.Histogram latencies = new QueryMetrics.Histogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder overloaded = new LongAdder();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final double[] bounds = server.shapeFile.getBounds();
+		final String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+		List<Thread> clients = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					while(!stop.get()) {
+						long start = System.nanoTime();
+						try {
+							int status = batchSize > 1 ? postBatch(random) : getPoint(random);
+							if(status == 503)
+								overloaded.increment();
+							else if(status != 200)
+								errors.increment();
+							else
+								latencies.record(System.nanoTime() - start);
+						} catch (IOException e) {
+							errors.increment();
+						}
+					}
+				}
+
+				double randomX(Random random) {
+					return bounds[0] + random.nextDouble() * (bounds[2] - bounds[0]);
+				}
+
+				double randomY(Random random) {
+					return bounds[1] + random.nextDouble() * (bounds[3] - bounds[1]);
+				}
+
+				int getPoint(Random random) throws IOException {
+					HttpURLConnection connection = (HttpURLConnection)new URL(base + "/point?x=" + randomX(random) + "&y=" + randomY(random)).openConnection();
+					return drain(connection);
+				}
+
+				int postBatch(Random random) throws IOException {
+					StringBuilder body = new StringBuilder();
+					for(int i = 0; i < batchSize; i++)
+						body.append(randomX(random)).append(',').append(randomY(random)).append('\n');
+					HttpURLConnection connection = (HttpURLConnection)new URL(base + "/batch").openConnection();
+					connection.setRequestMethod("POST");
+					connection.setDoOutput(true);
+					OutputStream out = connection.getOutputStream();
+					out.write(body.toString().getBytes(UTF8));
+					out.close();
+					return drain(connection);
+				}
+
+				int drain(HttpURLConnection connection) throws IOException {
+					int status = connection.getResponseCode();
+					InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+					if(in != null) {
+						readBody(in);
+						in.close();
+					}
+					return status;
+				}
+			}, "Shapely load " + t);
+			client.setDaemon(true);
+			clients.add(client);
+		}
+
+		for(Thread client: clients)
+			client.start();
+		Thread.sleep(seconds * 1000L);
+		stop.set(true);
+		for(Thread client: clients)
+			client.join();
+
+		long requests = latencies.count();
+		System.out.println(requests + " requests in " + seconds + " sec, " + requests / seconds + " requests/sec, "
+				+ requests * Math.max(1, batchSize) / seconds + " points/sec");
+		System.out.println("latency mean " + (long)(latencies.mean() / 1000) + " us, p50 " + latencies.percentile(50) / 1000
+				+ " us, p99 " + latencies.percentile(99) / 1000 + " us, p99.9 " + latencies.percentile(99.9) / 1000 + " us");
+		System.out.println(overloaded.sum() + " turned away with 503, " + errors.sum() + " errors, "
+				+ server.getCoalescedCount() + " lookups coalesced");
+	}
+
+	/**
+	 * LookupServer serve &lt;base path&gt; &lt;field&gt; [port]
+	 * LookupServer load &lt;base path&gt; &lt;field&gt; [threads] [seconds] [batch size]
+	 */
+	public static void main(String[] args) {
+		if(args.length < 3 || !(args[0].equals("serve") || args[0].equals("load"))) {
+			System.out.println("Usage: LookupServer serve <shapefile base path> <field> [port]");
+			System.out.println("       LookupServer load <shapefile base path> <field> [threads] [seconds] [batch size]");
+			return;
+		}
+		try {
+			if(System.getProperty("sun.net.httpserver.nodelay") == null)
+				System.setProperty("sun.net.httpserver.nodelay", "true");
+			ShapeFile shapeFile = new ShapeFile(args[1], new ShapeFile.Options().mapShapes(true));
+			if(args[0].equals("serve")) {
+				int port = args.length > 3 ? Integer.parseInt(args[3]) : 8080;
+				LookupServer server = new LookupServer(shapeFile, args[2], new InetSocketAddress(port)).start();
+				System.out.println("Serving " + args[1] + " on port " + server.getAddress().getPort());
+				return;
+			}
+			int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+			int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+			int batchSize = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+			LookupServer server = new LookupServer(shapeFile, args[2], new InetSocketAddress("127.0.0.1", 0)).start();
+			try {
+				loadTest(server, threads, seconds, batchSize);
+			} finally {
+				server.close();
+				shapeFile.close();
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			for(StackTraceElement element : e.getStackTrace())
+				System.out.println(element);
+		}
+	}
+}
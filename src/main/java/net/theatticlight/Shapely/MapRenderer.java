@@ -0,0 +1,328 @@
+package net.theatticlight.Shapely;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import net.theatticlight.Shapely.Record.Point;
+import net.theatticlight.Shapely.Record.Polygon;
+import net.theatticlight.Shapely.Record.Shape;
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.Record.UncheckedShapeException;
+import net.theatticlight.Shapely.Record.VertexShape;
+
+/**
+ * Draws a layer into an offscreen image. Geometry is simplified with
+ * Douglas-Peucker to a tolerance that matches the zoom: each level of
+ * detail halves the tolerance of the one before, the level used is the
+ * coarsest still under half a pixel. Only the records the spatial index
+ * finds in the view are simplified, in parallel and bypassing the record
+ * cache, and each record's geometry is kept per level for later renders,
+ * up to a total number of vertices.
+ */
+class MapRenderer {
+	static final int POINTS = 0;
+	static final int LINES = 1;
+	static final int AREA = 2;
+	static final long DEFAULT_MAX_VERTICES = 1L << 22;
+
+	static final Color FILL = new Color(0xDDE6F0);
+	static final Color OUTLINE = new Color(0x2F4F6F);
+
+	/**
+	 * A record's geometry at one level of detail, each part a run of
+	 * interleaved X and Y values.
+	 */
+	static final class Feature {
+		final int kind;
+		final double minX, minY, maxX, maxY;
+		final double[][] parts;
+		final int recordNumber;
+		final int vertexCount;
+
+		Feature(int kind, Record record, double[][] parts) {
+			this.kind = kind;
+			this.minX = record.getMinX();
+			this.minY = record.getMinY();
+			this.maxX = record.getMaxX();
+			this.maxY = record.getMaxY();
+			this.parts = parts;
+			this.recordNumber = record.getRecordNumber();
+			int vertexCount = 0;
+			for(double[] part: parts)
+				vertexCount += part.length / 2;
+			this.vertexCount = vertexCount;
+		}
+	}
+
+	final ShapeFile shapeFile;
+	final double finestTolerance;
+	final long maxVertices;
+	// Simplified features keyed on record number and level, least recently
+	// drawn first.
+	private final LinkedHashMap<Long,Feature> cache = new LinkedHashMap<Long,Feature>(1024, 0.75f, true);
+	private long cachedVertices;
+
+	MapRenderer(ShapeFile shapeFile) {
+		this(shapeFile, DEFAULT_MAX_VERTICES);
+	}
+
+	/**
+	 * @param maxVertices vertices of simplified geometry kept between
+	 * renders, over all levels
+	 */
+	MapRenderer(ShapeFile shapeFile, long maxVertices) {
+		this.shapeFile = shapeFile;
+		this.maxVertices = maxVertices;
+		double[] bounds = shapeFile.getBounds();
+		double extent = Math.max(bounds[2] - bounds[0], bounds[3] - bounds[1]);
+		finestTolerance = (extent > 0 ? extent : 1) / (1 << 24);
+	}
+
+	static int level(double tolerance, double finestTolerance) {
+		if(tolerance <= finestTolerance)
+			return 0;
+		return 31 - Integer.numberOfLeadingZeros((int)Math.min(Integer.MAX_VALUE, tolerance / finestTolerance));
+	}
+
+	private static long key(int recordNumber, int level) {
+		return (long)recordNumber << 8 | level;
+	}
+
+	/**
+	 * The records whose bounds meet the envelope simplified for drawing at
+	 * the given scale, in record order. Features not cached from an earlier
+	 * render are built in parallel and cached.
+	 */
+	Feature[] features(final double minX, final double minY, final double maxX, final double maxY, double unitsPerPixel) {
+		final int level = level(unitsPerPixel / 2, finestTolerance);
+		final double tolerance = finestTolerance * (1L << level);
+		final BitSet inView = new BitSet(shapeFile.getRecordCount() + 1);
+		shapeFile.spatialIndex.forEachRecordInEnvelope(minX, minY, maxX, maxY, new IntConsumer() {
+			public void accept(int recordNumber) {
+				inView.set(recordNumber);
+			}
+		});
+
+		final Feature[] features = new Feature[inView.cardinality()];
+		int[] missing = new int[features.length];
+		int missingCount = 0;
+		synchronized(cache) {
+			int i = 0;
+			for(int id = inView.nextSetBit(0); id >= 0; id = inView.nextSetBit(id + 1), i++) {
+				features[i] = cache.get(key(id, level));
+				if(features[i] == null)
+					missing[missingCount++] = i;
+			}
+		}
+		final int[] ids = inView.stream().toArray();
+		final int[] slots = Arrays.copyOf(missing, missingCount);
+		IntStream.range(0, slots.length).parallel().forEach(new IntConsumer() {
+			public void accept(int i) {
+				Record record = read(ids[slots[i]]);
+				if(record.minX <= maxX && record.minY <= maxY && record.maxX >= minX && record.maxY >= minY)
+					features[slots[i]] = simplify(record, tolerance);
+			}
+		});
+
+		synchronized(cache) {
+			for(int slot: slots) {
+				Feature feature = features[slot];
+				if(feature != null && cache.put(key(feature.recordNumber, level), feature) == null)
+					cachedVertices += feature.vertexCount;
+			}
+			Iterator<Feature> eldest = cache.values().iterator();
+			while(cachedVertices > maxVertices && eldest.hasNext()) {
+				cachedVertices -= eldest.next().vertexCount;
+				eldest.remove();
+			}
+		}
+		return features;
+	}
+
+	private Record read(int recordNumber) {
+		try {
+			return shapeFile.readRecord(recordNumber);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ShapeException e) {
+			throw new UncheckedShapeException(e);
+		}
+	}
+
+	static Feature simplify(Record record, double tolerance) {
+		Shape shape = record.getShape();
+		if(shape instanceof Point) {
+			Point point = (Point)shape;
+			return new Feature(POINTS, record, new double[][]{{point.getX(), point.getY()}});
+		}
+		if(!(shape instanceof VertexShape))
+			return null;
+
+		VertexShape vertices = (VertexShape)shape;
+		if(vertices.parts.length == 0) {
+			double[] points = new double[vertices.getPointCount()*2];
+			for(int i = 0; i < vertices.getPointCount(); i++) {
+				points[2*i] = vertices.getX(i);
+				points[2*i+1] = vertices.getY(i);
+			}
+			return new Feature(POINTS, record, new double[][]{points});
+		}
+
+		boolean area = shape instanceof Polygon;
+		double[][] parts = new double[vertices.parts.length][];
+		int kept = 0;
+		for(int part = 0; part < vertices.parts.length; part++) {
+			int start = vertices.parts[part];
+			int end = part + 1 < vertices.parts.length ? vertices.parts[part+1] : vertices.getPointCount();
+			double[] simplified = douglasPeucker(vertices, start, end, tolerance);
+			if(area && (simplified.length < 8 || subPixel(simplified, 2 * tolerance)))
+				continue;
+			parts[kept++] = simplified;
+		}
+		if(kept == 0) {
+			// Everything collapsed below a pixel; mark where it is.
+			double[] centre = {(record.getMinX() + record.getMaxX()) / 2, (record.getMinY() + record.getMaxY()) / 2};
+			return new Feature(POINTS, record, new double[][]{centre});
+		}
+		double[][] trimmed = new double[kept][];
+		System.arraycopy(parts, 0, trimmed, 0, kept);
+		return new Feature(area ? AREA : LINES, record, trimmed);
+	}
+
+	private static boolean subPixel(double[] ring, double size) {
+		double minX = ring[0], maxX = ring[0], minY = ring[1], maxY = ring[1];
+		for(int i = 2; i < ring.length; i += 2) {
+			minX = Math.min(minX, ring[i]);
+			maxX = Math.max(maxX, ring[i]);
+			minY = Math.min(minY, ring[i+1]);
+			maxY = Math.max(maxY, ring[i+1]);
+		}
+		return maxX - minX < size && maxY - minY < size;
+	}
+
+	/**
+	 * The vertices from start up to end that Douglas-Peucker keeps for the
+	 * tolerance, as interleaved X and Y values. Runs with an explicit stack
+	 * so long rings can't overflow the call stack.
+	 */
+	static double[] douglasPeucker(VertexShape shape, int start, int end, double tolerance) {
+		int count = end - start;
+		if(count <= 2) {
+			double[] all = new double[count*2];
+			for(int i = 0; i < count; i++) {
+				all[2*i] = shape.getX(start + i);
+				all[2*i+1] = shape.getY(start + i);
+			}
+			return all;
+		}
+
+		boolean[] keep = new boolean[count];
+		keep[0] = keep[count-1] = true;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = count - 1;
+		double toleranceSquared = tolerance * tolerance;
+		while(top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double ax = shape.getX(start + first), ay = shape.getY(start + first);
+			double bx = shape.getX(start + last), by = shape.getY(start + last);
+			double farthest = -1;
+			int index = -1;
+			for(int i = first + 1; i < last; i++) {
+				double d = Record.Vect.segmentDistanceSquared(shape.getX(start + i), shape.getY(start + i), ax, ay, bx, by);
+				if(d > farthest) {
+					farthest = d;
+					index = i;
+				}
+			}
+			if(index < 0 || farthest <= toleranceSquared)
+				continue;
+			keep[index] = true;
+			if(top + 4 > stack.length) {
+				int[] grown = new int[stack.length * 2];
+				System.arraycopy(stack, 0, grown, 0, top);
+				stack = grown;
+			}
+			stack[top++] = first;
+			stack[top++] = index;
+			stack[top++] = index;
+			stack[top++] = last;
+		}
+
+		int kept = 0;
+		for(boolean k: keep)
+			if(k)
+				kept++;
+		double[] simplified = new double[kept*2];
+		int n = 0;
+		for(int i = 0; i < count; i++)
+			if(keep[i]) {
+				simplified[n++] = shape.getX(start + i);
+				simplified[n++] = shape.getY(start + i);
+			}
+		return simplified;
+	}
+
+	/**
+	 * Renders the view whose top left corner is at minX, maxY in layer
+	 * coordinates. Decoding failures surface as UncheckedIOException or
+	 * Record.UncheckedShapeException.
+	 */
+	BufferedImage render(int width, int height, double minX, double maxY, double unitsPerPixel) {
+		double maxX = minX + width * unitsPerPixel;
+		double minY = maxY - height * unitsPerPixel;
+		Feature[] features = features(minX, minY, maxX, maxY, unitsPerPixel);
+		BufferedImage image = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setStroke(new BasicStroke(1f));
+
+			double scale = 1 / unitsPerPixel;
+			for(Feature feature: features) {
+				if(feature == null || feature.maxX < minX || feature.minX > maxX || feature.maxY < minY || feature.minY > maxY)
+					continue;
+				if(feature.kind == POINTS) {
+					g.setColor(OUTLINE);
+					for(double[] points: feature.parts)
+						for(int i = 0; i < points.length; i += 2)
+							g.fillRect((int)((points[i] - minX) * scale) - 1, (int)((maxY - points[i+1]) * scale) - 1, 3, 3);
+					continue;
+				}
+				Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+				for(double[] part: feature.parts) {
+					path.moveTo((part[0] - minX) * scale, (maxY - part[1]) * scale);
+					for(int i = 2; i < part.length; i += 2)
+						path.lineTo((part[i] - minX) * scale, (maxY - part[i+1]) * scale);
+					if(feature.kind == AREA)
+						path.closePath();
+				}
+				if(feature.kind == AREA) {
+					g.setColor(FILL);
+					g.fill(path);
+				}
+				g.setColor(OUTLINE);
+				g.draw(path);
+			}
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+}
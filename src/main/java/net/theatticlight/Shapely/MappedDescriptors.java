@@ -0,0 +1,164 @@
+package net.theatticlight.Shapely;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hexiong.jdbf.JDBFException;
+import com.hexiong.jdbf.JDBField;
+
+/**
+ * Attribute table that maps the .dbf and decodes single values on demand
+ * from the fixed record length and field offsets in its header, instead of
+ * reading every row up front. Values are parsed by the same JDBField rules
+ * DBFReader applies, and text in the same charset, so both tables return
+ * identical objects.
+ */
+public class MappedDescriptors implements AttributeTable {
+	static final int LANGUAGE_DRIVER = 29;
+
+	final ByteBuffer file;
+	final Charset charset;
+	final int recordCount;
+	final int headerLength;
+	final int recordLength;
+	final Map<String,Handle> fields;
+
+	class Handle implements FieldHandle {
+		final JDBField field;
+		final int offset;
+
+		Handle(JDBField field, int offset) {
+			this.field = field;
+			this.offset = offset;
+		}
+
+		public String getName() {
+			return field.getName();
+		}
+
+		public Object get(int recordNumber) {
+			if(recordNumber < 1 || recordNumber > recordCount)
+				throw new IndexOutOfBoundsException("No record " + recordNumber);
+
+			int position = headerLength + (recordNumber-1)*recordLength + offset;
+			byte[] raw = new byte[field.getLength()];
+			for(int i = 0; i < raw.length; i++)
+				raw[i] = file.get(position + i);
+			try {
+				return field.parse(new String(raw, charset));
+			} catch (JDBFException e) {
+				throw new IllegalStateException("Bad value in field " + field.getName() + " of record " + recordNumber, e);
+			}
+		}
+	}
+
+	MappedDescriptors(String filePath) throws IOException, JDBFException {
+		this(map(filePath));
+	}
+
+	/**
+	 * Reads the table from a buffer holding a whole .dbf file.
+	 */
+	MappedDescriptors(ByteBuffer dbf) throws JDBFException {
+		file = dbf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		recordCount = file.getInt(4);
+		headerLength = file.getShort(8) & 0xFFFF;
+		recordLength = file.getShort(10) & 0xFFFF;
+		charset = charset(file.get(LANGUAGE_DRIVER) & 0xFF);
+
+		fields = new LinkedHashMap<String,Handle>();
+		int offset = 1; //Skip deletion flag
+		for(int descriptor = 32; descriptor + 32 <= headerLength && file.get(descriptor) != 0x0D; descriptor += 32) {
+			byte[] name = new byte[11];
+			int nameLength = 0;
+			while(nameLength < 11 && file.get(descriptor + nameLength) != 0) {
+				name[nameLength] = file.get(descriptor + nameLength);
+				nameLength++;
+			}
+			char type = (char)file.get(descriptor + 11);
+			int length = file.get(descriptor + 16) & 0xFF;
+			int decimals = file.get(descriptor + 17) & 0xFF;
+
+			JDBField field = new JDBField(new String(name, 0, nameLength, StandardCharsets.ISO_8859_1), type, length, decimals);
+			fields.put(field.getName(), new Handle(field, offset));
+			offset += length;
+		}
+	}
+
+	/**
+	 * The charset named by a .dbf language driver ID, ISO-8859-1 for none
+	 * or one not listed here, so every byte still decodes to a character.
+	 */
+	static Charset charset(int languageDriver) {
+		String name;
+		switch(languageDriver) {
+		case 0x01: name = "IBM437"; break;
+		case 0x02: name = "IBM850"; break;
+		case 0x03: case 0x57: name = "windows-1252"; break;
+		case 0x13: case 0x7B: name = "windows-31j"; break;
+		case 0x4D: case 0x7A: name = "GBK"; break;
+		case 0x4E: case 0x79: name = "x-windows-949"; break;
+		case 0x4F: case 0x78: name = "x-windows-950"; break;
+		case 0x64: name = "IBM852"; break;
+		case 0x65: name = "IBM866"; break;
+		case 0x66: name = "IBM865"; break;
+		case 0x67: name = "IBM861"; break;
+		case 0x6A: name = "x-IBM737"; break;
+		case 0x6B: name = "IBM857"; break;
+		case 0x7C: name = "x-windows-874"; break;
+		case 0x7D: name = "windows-1255"; break;
+		case 0x7E: name = "windows-1256"; break;
+		case 0xC8: name = "windows-1250"; break;
+		case 0xC9: name = "windows-1251"; break;
+		case 0xCA: name = "windows-1254"; break;
+		case 0xCB: name = "windows-1253"; break;
+		case 0xCC: name = "windows-1257"; break;
+		default: return StandardCharsets.ISO_8859_1;
+		}
+		return Charset.isSupported(name) ? Charset.forName(name) : StandardCharsets.ISO_8859_1;
+	}
+
+	/**
+	 * The charset of the .dbf at filePath, from its language driver ID.
+	 */
+	static Charset charset(String filePath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			file.seek(LANGUAGE_DRIVER);
+			int languageDriver = file.read();
+			return charset(languageDriver < 0 ? 0 : languageDriver);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static ByteBuffer map(String filePath) throws IOException {
+		FileInputStream in = new FileInputStream(filePath);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	public FieldHandle getField(String fieldName) {
+		Handle handle = fields.get(fieldName);
+		if(handle == null)
+			throw new IllegalArgumentException("No such field: " + fieldName);
+		return handle;
+	}
+
+	public Object getShapeInfo(int recordNumber, String fieldName) {
+		return getField(fieldName).get(recordNumber);
+	}
+}
@@ -0,0 +1,119 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+
+/**
+ * Best-first nearest neighbour search over a PackedSpatialIndex. Index
+ * nodes, records and exact results share one queue ordered by squared
+ * distance, each entry's key a lower bound on the distance of anything it
+ * leads to. A record is queued at its node's distance, requeued at the
+ * distance of the bounding box in its header, and only then decoded and
+ * measured exactly, so records further than the k nearest are never
+ * decoded and branches further than maxDistance are never opened.
+ */
+class NearestSearch {
+	static final int NODE = 0;
+	static final int RECORD = 1;
+	static final int BOUNDED = 2;
+	static final int RESULT = 3;
+
+	static final class Entry implements Comparable<Entry> {
+		final double distance;
+		final int kind;
+		final int id;
+		final Record record;
+
+		Entry(double distance, int kind, int id, Record record) {
+			this.distance = distance;
+			this.kind = kind;
+			this.id = id;
+			this.record = record;
+		}
+
+		public int compareTo(Entry other) {
+			int order = Double.compare(distance, other.distance);
+			return order != 0 ? order : other.kind - kind;
+		}
+	}
+
+	final ShapeFile shapeFile;
+	final PackedSpatialIndex index;
+	final double x, y;
+	final double maxDistanceSquared;
+	final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+	final BitSet seen = new BitSet();
+
+	NearestSearch(ShapeFile shapeFile, PackedSpatialIndex index, double x, double y, double maxDistance) {
+		if(!(maxDistance >= 0))
+			throw new IllegalArgumentException("Maximum distance must be zero or more: " + maxDistance);
+		this.shapeFile = shapeFile;
+		this.index = index;
+		this.x = x;
+		this.y = y;
+		this.maxDistanceSquared = maxDistance * maxDistance;
+	}
+
+	List<Record> run(int k) throws IOException, ShapeException {
+		List<Record> nearest = new ArrayList<Record>(Math.min(k, 16));
+		if(k <= 0 || index.nodeCount == 0)
+			return nearest;
+
+		offer(nodeDistanceSquared(0), NODE, 0, null);
+		while(nearest.size() < k) {
+			Entry entry = queue.poll();
+			if(entry == null)
+				break;
+			switch(entry.kind) {
+			case NODE:
+				expand(entry);
+				break;
+			case RECORD:
+				if(seen.get(entry.id))
+					break;
+				seen.set(entry.id);
+				Record record = shapeFile.getRecord(entry.id);
+				double bounds = record.boundsDistanceSquared(x, y);
+				if(bounds > entry.distance) {
+					offer(bounds, BOUNDED, entry.id, record);
+					break;
+				}
+				offer(record.getShape().distanceSquared(x, y), RESULT, entry.id, record);
+				break;
+			case BOUNDED:
+				offer(entry.record.getShape().distanceSquared(x, y), RESULT, entry.id, entry.record);
+				break;
+			case RESULT:
+				nearest.add(entry.record);
+				break;
+			}
+		}
+		return nearest;
+	}
+
+	private void expand(Entry entry) {
+		int node = entry.id;
+		for(int r = index.recordStart[node], end = index.recordStart[node+1]; r < end; r++)
+			if(!seen.get(index.recordIDs[r]))
+				offer(entry.distance, RECORD, index.recordIDs[r], null);
+		for(int child = node + 1; child < index.subtreeEnd[node]; child = index.subtreeEnd[child])
+			offer(nodeDistanceSquared(child), NODE, child, null);
+	}
+
+	private void offer(double distance, int kind, int id, Record record) {
+		if(distance <= maxDistanceSquared)
+			queue.add(new Entry(distance, kind, id, record));
+	}
+
+	private double nodeDistanceSquared(int node) {
+		int b = node*4;
+		double dx = Math.max(Math.max(index.bounds[b] - x, x - index.bounds[b+2]), 0);
+		double dy = Math.max(Math.max(index.bounds[b+1] - y, y - index.bounds[b+3]), 0);
+		return dx*dx + dy*dy;
+	}
+}
@@ -0,0 +1,115 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+
+/**
+ * The records of a snapshot, served from its packed sections rather than a
+ * .shp. Each record has a shape type, a bounding box and start offsets into
+ * three shared arrays: interleaved X,Y vertices, part offsets with their
+ * multipatch part types, and the raw Z and M bytes. A record is built from
+ * its header values alone and getShape copies its slice of the vertices
+ * and parts out in bulk; nothing is parsed.
+ *
+ * Record offsets are vertex starts, so parallel scans split on vertex
+ * counts, which track the work as closely as .shp byte offsets do.
+ */
+class PackedRecords extends ShapeFile.Index {
+	final IntBuffer shapeTypes;
+	final DoubleBuffer bounds;
+	final IntBuffer vertexStarts;
+	final IntBuffer partStarts;
+	final IntBuffer measureStarts;
+	final DoubleBuffer coordinates;
+	final IntBuffer parts;
+	final IntBuffer partTypes;
+	final ByteBuffer measures;
+
+	/**
+	 * @param sections little endian snapshot sections, indexed by their
+	 * Snapshot section IDs
+	 */
+	PackedRecords(ByteBuffer[] sections, RecordCache cache) {
+		super(ShapeFile.NO_RECORDS, cache);
+		shapeTypes = sections[Snapshot.SHAPE_TYPES].asIntBuffer();
+		bounds = sections[Snapshot.RECORD_BOUNDS].asDoubleBuffer();
+		vertexStarts = sections[Snapshot.VERTEX_STARTS].asIntBuffer();
+		partStarts = sections[Snapshot.PART_STARTS].asIntBuffer();
+		measureStarts = sections[Snapshot.MEASURE_STARTS].asIntBuffer();
+		coordinates = sections[Snapshot.COORDINATES].asDoubleBuffer();
+		parts = sections[Snapshot.PARTS].asIntBuffer();
+		partTypes = sections[Snapshot.PART_TYPES].asIntBuffer();
+		measures = sections[Snapshot.MEASURES].duplicate();
+	}
+
+	int getRecordCount() {
+		return shapeTypes.capacity();
+	}
+
+	public int getOffset(int recordNumber) {
+		return vertexStarts.get(recordNumber-1);
+	}
+
+	int getShapeType(int recordNumber) {
+		return shapeTypes.get(recordNumber-1);
+	}
+
+	int getVertexCount(int recordNumber) {
+		return vertexStarts.get(recordNumber) - vertexStarts.get(recordNumber-1);
+	}
+
+	double[] getCoordinates(int recordNumber) {
+		int start = vertexStarts.get(recordNumber-1);
+		double[] coords = new double[getVertexCount(recordNumber)*2];
+		DoubleBuffer db = coordinates.duplicate();
+		db.position(start*2);
+		db.get(coords);
+		return coords;
+	}
+
+	int[] getParts(int recordNumber) {
+		return slice(parts, recordNumber);
+	}
+
+	int[] getPartTypes(int recordNumber) {
+		return slice(partTypes, recordNumber);
+	}
+
+	/**
+	 * The Z and M bytes of the record, laid out as in its .shp content.
+	 */
+	ByteBuffer getMeasures(int recordNumber) {
+		ByteBuffer bb = measures.duplicate();
+		bb.limit(measureStarts.get(recordNumber));
+		bb.position(measureStarts.get(recordNumber-1));
+		return bb.slice();
+	}
+
+	private int[] slice(IntBuffer values, int recordNumber) {
+		int start = partStarts.get(recordNumber-1);
+		int[] slice = new int[partStarts.get(recordNumber) - start];
+		IntBuffer ib = values.duplicate();
+		ib.position(start);
+		ib.get(slice);
+		return slice;
+	}
+
+	double[] readRecordBounds(ByteBuffer shapes) {
+		double[] bounds = new double[getRecordCount()*4];
+		this.bounds.duplicate().get(bounds);
+		return bounds;
+	}
+
+	Record readRecord(RandomAccessFile file, int recordNumber) throws IOException, ShapeException {
+		return new Record(this, recordNumber);
+	}
+
+	Record readRecord(ByteBuffer shapes, int recordNumber) throws IOException, ShapeException {
+		return new Record(this, recordNumber);
+	}
+}
@@ -0,0 +1,444 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import net.theatticlight.Shapely.SpatialIndex.SpatialIndexException;
+
+/**
+ * Spatial index held in a handful of primitive arrays instead of a tree of
+ * node objects. Nodes are numbered in depth first order, so a node's
+ * descendants are the nodes following it up to subtreeEnd[node]. A lookup
+ * walks the array from the root, stepping into a node when the point is
+ * inside its bounds and jumping to its subtreeEnd otherwise; that skip
+ * pointer stands in for the explicit traversal stack, so a query allocates
+ * nothing and never recurses.
+ */
+public class PackedSpatialIndex implements SpatialLookup {
+	final int nodeCount;
+	final double[] bounds;
+	final int[] subtreeEnd;
+	final int[] recordStart;
+	final int[] recordIDs;
+
+	PackedSpatialIndex(double[] bounds, int[] subtreeEnd, int[] recordStart, int[] recordIDs) {
+		this.nodeCount = subtreeEnd.length;
+		this.bounds = bounds;
+		this.subtreeEnd = subtreeEnd;
+		this.recordStart = recordStart;
+		this.recordIDs = recordIDs;
+	}
+
+	/**
+	 * Accumulates nodes in depth first order. Each node must be begun, given
+	 * its records, then followed by its children, and ended once the last of
+	 * its descendants has been ended.
+	 */
+	static class Builder {
+		int nodeCount = 0;
+		int recordCount = 0;
+		double[] bounds = new double[64];
+		int[] subtreeEnd = new int[16];
+		int[] recordStart = new int[17];
+		int[] recordIDs = new int[64];
+
+		int beginNode(double minX, double minY, double maxX, double maxY) {
+			if(nodeCount == subtreeEnd.length) {
+				bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				subtreeEnd = Arrays.copyOf(subtreeEnd, subtreeEnd.length * 2);
+				recordStart = Arrays.copyOf(recordStart, subtreeEnd.length + 1);
+			}
+			int node = nodeCount++;
+			bounds[node*4] = minX;
+			bounds[node*4+1] = minY;
+			bounds[node*4+2] = maxX;
+			bounds[node*4+3] = maxY;
+			recordStart[node] = recordCount;
+			recordStart[node+1] = recordCount;
+			return node;
+		}
+
+		void addRecord(int recordNumber) {
+			if(recordCount == recordIDs.length)
+				recordIDs = Arrays.copyOf(recordIDs, recordIDs.length * 2);
+			recordIDs[recordCount++] = recordNumber;
+			recordStart[nodeCount] = recordCount;
+		}
+
+		void endNode(int node) {
+			subtreeEnd[node] = nodeCount;
+		}
+
+		PackedSpatialIndex build() {
+			return new PackedSpatialIndex(
+					Arrays.copyOf(bounds, nodeCount*4),
+					Arrays.copyOf(subtreeEnd, nodeCount),
+					Arrays.copyOf(recordStart, nodeCount + 1),
+					Arrays.copyOf(recordIDs, recordCount));
+		}
+	}
+
+	/**
+	 * Reads a .qix file straight into the packed layout. The file is mapped
+	 * and parsed in its declared byte order, and nesting is tracked on an
+	 * explicit stack so deep trees don't recurse.
+	 */
+	public static PackedSpatialIndex load(String fileBaseName) throws IOException, SpatialIndexException {
+		ByteBuffer file = SpatialIndex.readIndexFile(fileBaseName);
+		file.getInt(); //Total shape count
+		file.getInt(); //Max depth
+
+		Builder builder = new Builder();
+		int[] nodes = new int[16];
+		int[] remaining = new int[16];
+		int depth = 0;
+		do {
+			file.getInt(); //Skip offset to the next sibling; every node is read
+			int node = builder.beginNode(file.getDouble(), file.getDouble(), file.getDouble(), file.getDouble());
+			int recordCount = file.getInt();
+			for(int i = 0; i < recordCount; i++)
+				builder.addRecord(file.getInt() + 1);
+
+			if(depth == nodes.length) {
+				nodes = Arrays.copyOf(nodes, depth * 2);
+				remaining = Arrays.copyOf(remaining, depth * 2);
+			}
+			nodes[depth] = node;
+			remaining[depth] = file.getInt();
+			depth++;
+
+			while(depth > 0 && remaining[depth-1] == 0) {
+				builder.endNode(nodes[--depth]);
+				if(depth > 0)
+					remaining[depth-1]--;
+			}
+		} while(depth > 0);
+
+		return builder.build();
+	}
+
+	/**
+	 * Bulk loads a Sort-Tile-Recursive R-tree over record bounding boxes.
+	 * Boxes are sorted into vertical slices by center X, each slice is sorted
+	 * by center Y and cut into full nodes of nodeCapacity entries, and the
+	 * same packing is repeated over the nodes until one root remains.
+	 *
+	 * @param boxes minX,minY,maxX,maxY for each record, NaN for null shapes
+	 * @param extent bounds given to the root when there are no records
+	 */
+	public static PackedSpatialIndex bulkLoad(double[] boxes, double[] extent, int nodeCapacity) {
+		int[] ids = new int[boxes.length / 4];
+		double[] itemBounds = new double[boxes.length];
+		int count = 0;
+		for(int i = 0; i < ids.length; i++) {
+			if(Double.isNaN(boxes[i*4]))
+				continue;
+			ids[count] = i + 1;
+			System.arraycopy(boxes, i*4, itemBounds, count*4, 4);
+			count++;
+		}
+
+		Builder builder = new Builder();
+		if(count == 0) {
+			builder.endNode(builder.beginNode(extent[0], extent[1], extent[2], extent[3]));
+			return builder.build();
+		}
+
+		List<int[]> orders = new ArrayList<int[]>();
+		List<double[]> levelBounds = new ArrayList<double[]>();
+		List<Integer> levelCounts = new ArrayList<Integer>();
+		levelBounds.add(itemBounds);
+		levelCounts.add(count);
+		do {
+			int[] order = tileOrder(itemBounds, count, nodeCapacity);
+			int nodes = (count + nodeCapacity - 1) / nodeCapacity;
+			double[] nodeBounds = new double[nodes*4];
+			for(int node = 0; node < nodes; node++) {
+				double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+				for(int i = node*nodeCapacity, end = Math.min(count, i + nodeCapacity); i < end; i++) {
+					int b = order[i]*4;
+					minX = Math.min(minX, itemBounds[b]);
+					minY = Math.min(minY, itemBounds[b+1]);
+					maxX = Math.max(maxX, itemBounds[b+2]);
+					maxY = Math.max(maxY, itemBounds[b+3]);
+				}
+				nodeBounds[node*4] = minX;
+				nodeBounds[node*4+1] = minY;
+				nodeBounds[node*4+2] = maxX;
+				nodeBounds[node*4+3] = maxY;
+			}
+			orders.add(order);
+			levelBounds.add(nodeBounds);
+			levelCounts.add(nodes);
+			itemBounds = nodeBounds;
+			count = nodes;
+		} while(count > 1);
+
+		emit(builder, orders, levelBounds, levelCounts, ids, nodeCapacity, orders.size(), 0);
+		return builder.build();
+	}
+
+	private static void emit(Builder builder, List<int[]> orders, List<double[]> levelBounds, List<Integer> levelCounts,
+							int[] ids, int nodeCapacity, int level, int index) {
+		double[] bounds = levelBounds.get(level);
+		int node = builder.beginNode(bounds[index*4], bounds[index*4+1], bounds[index*4+2], bounds[index*4+3]);
+		int[] order = orders.get(level - 1);
+		for(int i = index*nodeCapacity, end = Math.min(levelCounts.get(level - 1), i + nodeCapacity); i < end; i++) {
+			if(level == 1)
+				builder.addRecord(ids[order[i]]);
+			else
+				emit(builder, orders, levelBounds, levelCounts, ids, nodeCapacity, level - 1, order[i]);
+		}
+		builder.endNode(node);
+	}
+
+	/**
+	 * Orders items so that consecutive runs of nodeCapacity form STR nodes.
+	 * Every slice but the last holds a whole number of nodes, so runs never
+	 * straddle two slices.
+	 */
+	private static int[] tileOrder(double[] bounds, int count, int nodeCapacity) {
+		int[] order = new int[count];
+		double[] centerX = new double[count];
+		double[] centerY = new double[count];
+		for(int i = 0; i < count; i++) {
+			order[i] = i;
+			centerX[i] = (bounds[i*4] + bounds[i*4+2]) / 2;
+			centerY[i] = (bounds[i*4+1] + bounds[i*4+3]) / 2;
+		}
+
+		int nodes = (count + nodeCapacity - 1) / nodeCapacity;
+		int sliceSize = (int)Math.ceil(Math.sqrt(nodes)) * nodeCapacity;
+		sort(order, centerX, 0, count);
+		for(int start = 0; start < count; start += sliceSize)
+			sort(order, centerY, start, Math.min(count, start + sliceSize));
+		return order;
+	}
+
+	/**
+	 * Sorts order[from, to) by keys[order[i]] without boxing.
+	 */
+	static void sort(int[] order, double[] keys, int from, int to) {
+		while(to - from > 16) {
+			int mid = (from + to) >>> 1;
+			double pivot = median(keys[order[from]], keys[order[mid]], keys[order[to - 1]]);
+			int i = from, j = to - 1;
+			while(i <= j) {
+				while(keys[order[i]] < pivot)
+					i++;
+				while(keys[order[j]] > pivot)
+					j--;
+				if(i <= j) {
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+				}
+			}
+			if(j - from < to - i) {
+				sort(order, keys, from, j + 1);
+				from = i;
+			}
+			else {
+				sort(order, keys, i, to);
+				to = j + 1;
+			}
+		}
+		for(int i = from + 1; i < to; i++) {
+			int item = order[i];
+			double key = keys[item];
+			int j = i - 1;
+			while(j >= from && keys[order[j]] > key) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = item;
+		}
+	}
+
+	private static double median(double a, double b, double c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+
+	/**
+	 * Saves the index as a little endian .qix file so later loads can skip
+	 * building it. The file is written beside the target and renamed over it.
+	 */
+	public void write(String fileBaseName, int totalCount) throws IOException {
+		long[] start = new long[nodeCount + 1];
+		for(int node = 0; node < nodeCount; node++)
+			start[node + 1] = start[node] + 44 + 4L*(recordStart[node + 1] - recordStart[node]);
+
+		int maxDepth = 0;
+		int[] ends = new int[16];
+		int depth = 0;
+		for(int node = 0; node < nodeCount; node++) {
+			while(depth > 0 && ends[depth - 1] <= node)
+				depth--;
+			if(depth == ends.length)
+				ends = Arrays.copyOf(ends, depth * 2);
+			ends[depth++] = subtreeEnd[node];
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		File target = new File(fileBaseName + ".qix");
+		File temp = new File(fileBaseName + ".qix.tmp");
+		FileChannel channel = new FileOutputStream(temp).getChannel();
+		try {
+			ByteBuffer bb = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			bb.put("SQT".getBytes()).put((byte)SpatialIndex.LSB_ORDER).put((byte)1).put(new byte[3]);
+			bb.putInt(totalCount).putInt(maxDepth);
+			for(int node = 0; node < nodeCount; node++) {
+				int records = recordStart[node + 1] - recordStart[node];
+				if(bb.remaining() < 44 + 4*records) {
+					flush(channel, bb);
+					if(bb.capacity() < 44 + 4*records)
+						bb = ByteBuffer.allocate(44 + 4*records).order(ByteOrder.LITTLE_ENDIAN);
+				}
+				bb.putInt((int)(start[subtreeEnd[node]] - start[node + 1]));
+				bb.putDouble(bounds[node*4]).putDouble(bounds[node*4+1]).putDouble(bounds[node*4+2]).putDouble(bounds[node*4+3]);
+				bb.putInt(records);
+				for(int r = recordStart[node]; r < recordStart[node + 1]; r++)
+					bb.putInt(recordIDs[r] - 1);
+				int children = 0;
+				for(int child = node + 1; child < subtreeEnd[node]; child = subtreeEnd[child])
+					children++;
+				bb.putInt(children);
+			}
+			flush(channel, bb);
+		} finally {
+			channel.close();
+		}
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer bb) throws IOException {
+		bb.flip();
+		while(bb.hasRemaining())
+			channel.write(bb);
+		bb.clear();
+	}
+
+	/**
+	 * Flattens a tree read by SpatialIndex.
+	 */
+	public static PackedSpatialIndex pack(SpatialIndex index) {
+		Builder builder = new Builder();
+		pack(builder, index.rootNode);
+		return builder.build();
+	}
+
+	private static void pack(Builder builder, SpatialIndex.TreeNode treeNode) {
+		int node = builder.beginNode(treeNode.minX, treeNode.minY, treeNode.maxX, treeNode.maxY);
+		for(int rec: treeNode.recordIDs)
+			builder.addRecord(rec);
+		for(SpatialIndex.TreeNode subNode: treeNode.subNodes)
+			pack(builder, subNode);
+		builder.endNode(node);
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public List<Integer> getRecordsAtPoint(double X, double Y) {
+		int[] buffer = new int[16];
+		int count = getRecordsAtPoint(X, Y, buffer);
+		if(count > buffer.length) {
+			buffer = new int[count];
+			getRecordsAtPoint(X, Y, buffer);
+		}
+		List<Integer> records = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++)
+			records.add(buffer[i]);
+		return records;
+	}
+
+	public int getRecordsAtPoint(double X, double Y, int[] buffer) {
+		int count = 0;
+		int node = 0;
+		while(node < nodeCount) {
+			int b = node*4;
+			if(X < bounds[b] || Y < bounds[b+1] || X > bounds[b+2] || Y > bounds[b+3]) {
+				node = subtreeEnd[node];
+				continue;
+			}
+			for(int r = recordStart[node], end = recordStart[node+1]; r < end; r++) {
+				if(count < buffer.length)
+					buffer[count] = recordIDs[r];
+				count++;
+			}
+			node++;
+		}
+		return count;
+	}
+
+	/**
+	 * The candidates getRecordsAtPoint would find, also counting the nodes
+	 * whose bounds were tested into the trace.
+	 */
+	int[] traceRecordsAtPoint(double X, double Y, QueryExplain trace) {
+		int[] buffer = new int[16];
+		int count = 0;
+		int visited = 0;
+		int node = 0;
+		while(node < nodeCount) {
+			visited++;
+			int b = node*4;
+			if(X < bounds[b] || Y < bounds[b+1] || X > bounds[b+2] || Y > bounds[b+3]) {
+				node = subtreeEnd[node];
+				continue;
+			}
+			for(int r = recordStart[node], end = recordStart[node+1]; r < end; r++) {
+				if(count == buffer.length)
+					buffer = Arrays.copyOf(buffer, count * 2);
+				buffer[count++] = recordIDs[r];
+			}
+			node++;
+		}
+		trace.nodesVisited += visited;
+		return Arrays.copyOf(buffer, count);
+	}
+
+	public void forEachRecordAtPoint(double X, double Y, IntConsumer consumer) {
+		int node = 0;
+		while(node < nodeCount) {
+			int b = node*4;
+			if(X < bounds[b] || Y < bounds[b+1] || X > bounds[b+2] || Y > bounds[b+3]) {
+				node = subtreeEnd[node];
+				continue;
+			}
+			for(int r = recordStart[node], end = recordStart[node+1]; r < end; r++)
+				consumer.accept(recordIDs[r]);
+			node++;
+		}
+	}
+
+	/**
+	 * Passes the records of every node whose bounds meet the envelope. A
+	 * record listed under several such nodes is passed once for each.
+	 */
+	public void forEachRecordInEnvelope(double minX, double minY, double maxX, double maxY, IntConsumer consumer) {
+		int node = 0;
+		while(node < nodeCount) {
+			int b = node*4;
+			if(maxX < bounds[b] || maxY < bounds[b+1] || minX > bounds[b+2] || minY > bounds[b+3]) {
+				node = subtreeEnd[node];
+				continue;
+			}
+			for(int r = recordStart[node], end = recordStart[node+1]; r < end; r++)
+				consumer.accept(recordIDs[r]);
+			node++;
+		}
+	}
+}
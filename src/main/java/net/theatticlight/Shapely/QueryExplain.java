@@ -0,0 +1,251 @@
+package net.theatticlight.Shapely;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What one point lookup did: where its candidates came from, how much of
+ * the index it walked, and for each candidate whether it was cached, how
+ * many vertices its containment test looked at and how long each step
+ * took. Returned by ShapeFile.explain; the same object, without the
+ * per-candidate detail, is the trace QueryMetrics totals up.
+ */
+public class QueryExplain {
+	public static class Candidate {
+		final int recordNumber;
+		final Record.ShapeType shapeType;
+		final int vertexCount;
+		final int verticesExamined;
+		final boolean cached;
+		final boolean matched;
+		final long fetchNanos;
+		final long containsNanos;
+
+		Candidate(int recordNumber, Record record, int verticesExamined, boolean cached, boolean matched, long fetchNanos, long containsNanos) {
+			this.recordNumber = recordNumber;
+			this.shapeType = record.shapeType;
+			this.vertexCount = record.getVertexCount();
+			this.verticesExamined = verticesExamined;
+			this.cached = cached;
+			this.matched = matched;
+			this.fetchNanos = fetchNanos;
+			this.containsNanos = containsNanos;
+		}
+
+		public int getRecordNumber() {
+			return recordNumber;
+		}
+
+		public Record.ShapeType getShapeType() {
+			return shapeType;
+		}
+
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		public int getVerticesExamined() {
+			return verticesExamined;
+		}
+
+		public boolean isCached() {
+			return cached;
+		}
+
+		public boolean isMatched() {
+			return matched;
+		}
+
+		public long getFetchNanos() {
+			return fetchNanos;
+		}
+
+		public long getContainsNanos() {
+			return containsNanos;
+		}
+
+		public String toString() {
+			return "record " + recordNumber + " (" + shapeType + ", " + vertexCount + " vertices): "
+					+ (matched ? "match" : "no match") + ", " + (cached ? "cached" : "decoded")
+					+ " in " + fetchNanos + "ns, tested " + verticesExamined + " vertices in " + containsNanos + "ns";
+		}
+	}
+
+	final double x;
+	final double y;
+	final boolean detailed;
+	final long start = System.nanoTime();
+	final long[] phaseNanos = {-1, -1, -1, -1, -1};
+
+	boolean resultCacheHit;
+	String grid;
+	int nodesVisited;
+	int candidateCount;
+	int[] matches = ShapeFile.NO_RECORDS;
+	long verticesExamined;
+	int recordCacheHits;
+	int recordCacheMisses;
+	List<Candidate> candidates;
+	List<Object> values;
+	// The candidate being tested: whether it was cached and the vertices
+	// its containment test has looked at so far.
+	boolean fetchedCached;
+	int examined;
+
+	QueryExplain(double x, double y, boolean detailed) {
+		this.x = x;
+		this.y = y;
+		this.detailed = detailed;
+		this.candidates = detailed ? new ArrayList<Candidate>() : Collections.<Candidate>emptyList();
+	}
+
+	void resultCacheHit(int[] matches) {
+		resultCacheHit = true;
+		this.matches = matches;
+	}
+
+	void gridCell(int cell) {
+		if(cell == ClassificationGrid.OUTSIDE)
+			grid = "outside";
+		else if(cell == ClassificationGrid.EMPTY)
+			grid = "empty";
+		else if(cell > 0)
+			grid = "inside";
+		else
+			grid = "boundary";
+	}
+
+	void fetched(boolean cached) {
+		fetchedCached = cached;
+		examined = 0;
+	}
+
+	/**
+	 * Totals up the candidate last fetched.
+	 */
+	void candidate(int recordNumber, Record record, boolean matched, long fetchNanos, long containsNanos) {
+		verticesExamined += examined;
+		if(fetchedCached)
+			recordCacheHits++;
+		else
+			recordCacheMisses++;
+		if(detailed)
+			candidates.add(new Candidate(recordNumber, record, examined, fetchedCached, matched, fetchNanos, containsNanos));
+	}
+
+	void phase(int phase, long nanos) {
+		phaseNanos[phase] = phaseNanos[phase] < 0 ? nanos : phaseNanos[phase] + nanos;
+	}
+
+	QueryExplain finish() {
+		phaseNanos[QueryMetrics.QUERY] = System.nanoTime() - start;
+		return this;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	/**
+	 * Whether the answer came from the result cache, in which case nothing
+	 * else was looked at.
+	 */
+	public boolean isResultCacheHit() {
+		return resultCacheHit;
+	}
+
+	/**
+	 * How the classification grid classified the point: "inside", "empty",
+	 * "outside" or "boundary", or null if the layer has no grid.
+	 */
+	public String getGridClassification() {
+		return grid;
+	}
+
+	/**
+	 * Whether the grid settled the lookup without any containment test.
+	 */
+	public boolean isGridAnswer() {
+		return grid != null && !grid.equals("boundary");
+	}
+
+	public int getNodesVisited() {
+		return nodesVisited;
+	}
+
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+
+	public int getMatchCount() {
+		return matches.length;
+	}
+
+	public int[] getMatches() {
+		return matches.clone();
+	}
+
+	public long getVerticesExamined() {
+		return verticesExamined;
+	}
+
+	public int getRecordCacheHits() {
+		return recordCacheHits;
+	}
+
+	public int getRecordCacheMisses() {
+		return recordCacheMisses;
+	}
+
+	/**
+	 * Time spent in a QueryMetrics phase, or -1 if the lookup skipped it.
+	 */
+	public long getPhaseNanos(int phase) {
+		return phaseNanos[phase];
+	}
+
+	public long getTotalNanos() {
+		return phaseNanos[QueryMetrics.QUERY];
+	}
+
+	public List<Candidate> getCandidates() {
+		return Collections.unmodifiableList(candidates);
+	}
+
+	/**
+	 * Attribute values of the matches, when the lookup was explained with a
+	 * field.
+	 */
+	public List<Object> getValues() {
+		return values;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Lookup at (").append(x).append(", ").append(y).append("): ")
+			.append(matches.length).append(" match(es) ").append(Arrays.toString(matches))
+			.append(" in ").append(getTotalNanos()).append("ns\n");
+		if(resultCacheHit)
+			sb.append("  answered from the result cache\n");
+		if(grid != null)
+			sb.append("  grid cell: ").append(grid).append('\n');
+		if(nodesVisited > 0)
+			sb.append("  index nodes visited: ").append(nodesVisited).append('\n');
+		if(!resultCacheHit)
+			sb.append("  candidates: ").append(candidateCount).append(", vertices examined: ").append(verticesExamined).append('\n');
+		for(int phase = 0; phase < QueryMetrics.QUERY; phase++)
+			if(phaseNanos[phase] >= 0)
+				sb.append("  ").append(QueryMetrics.PHASE_NAMES[phase]).append(": ").append(phaseNanos[phase]).append("ns\n");
+		for(Candidate candidate: candidates)
+			sb.append("  ").append(candidate).append('\n');
+		if(values != null)
+			sb.append("  values: ").append(values).append('\n');
+		return sb.toString();
+	}
+}
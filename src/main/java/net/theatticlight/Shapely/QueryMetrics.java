@@ -0,0 +1,272 @@
+package net.theatticlight.Shapely;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and work counters for the point lookups of one
+ * ShapeFile. Attach it with ShapeFile.Options.metrics; a ShapeFile without
+ * metrics takes the untraced path and pays only a null check per query.
+ *
+ * Each lookup is split into phases: finding candidates in the spatial index
+ * or classification grid, fetching and decoding candidate records, testing
+ * containment, and reading attributes. A phase a lookup skips, such as
+ * everything after a result cache hit, is not recorded for it.
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+	public static final int INDEX = 0;
+	public static final int FETCH = 1;
+	public static final int CONTAINS = 2;
+	public static final int ATTRIBUTES = 3;
+	public static final int QUERY = 4;
+
+	static final String[] PHASE_NAMES = {"index", "fetch", "contains", "attributes", "query"};
+
+	final Histogram[] phases = new Histogram[PHASE_NAMES.length];
+
+	final LongAdder nodesVisited = new LongAdder();
+	final LongAdder candidates = new LongAdder();
+	final LongAdder matches = new LongAdder();
+	final LongAdder verticesExamined = new LongAdder();
+	final LongAdder resultCacheHits = new LongAdder();
+	final LongAdder gridAnswers = new LongAdder();
+	final LongAdder recordCacheHits = new LongAdder();
+	final LongAdder recordCacheMisses = new LongAdder();
+
+	private volatile ObjectName registeredName;
+
+	/**
+	 * Log-linear histogram of nanosecond latencies: each power of two is
+	 * split into four buckets, so a reported percentile is within a quarter
+	 * of the true value. Buckets are LongAdders so threads recording at once
+	 * don't contend.
+	 */
+	static class Histogram {
+		static final int BUCKETS = 248;
+
+		final LongAdder[] counts = new LongAdder[BUCKETS];
+		final LongAdder total = new LongAdder();
+		final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for(int i = 0; i < BUCKETS; i++)
+				counts[i] = new LongAdder();
+		}
+
+		static int bucket(long nanos) {
+			if(nanos < 4)
+				return nanos < 0 ? 0 : (int)nanos;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			return 4*(exponent - 1) + (int)((nanos >>> (exponent - 2)) & 3);
+		}
+
+		static long upperBound(int bucket) {
+			if(bucket < 4)
+				return bucket;
+			int exponent = bucket/4 + 1;
+			return ((5L + bucket%4) << (exponent - 2)) - 1;
+		}
+
+		void record(long nanos) {
+			counts[bucket(nanos)].increment();
+			total.increment();
+			sum.add(nanos);
+		}
+
+		long count() {
+			return total.sum();
+		}
+
+		double mean() {
+			long count = total.sum();
+			return count == 0 ? 0 : (double)sum.sum() / count;
+		}
+
+		long percentile(double percentile) {
+			long count = total.sum();
+			if(count == 0)
+				return 0;
+			long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += counts[i].sum();
+				if(seen >= rank)
+					return upperBound(i);
+			}
+			return upperBound(BUCKETS - 1);
+		}
+
+		void reset() {
+			for(LongAdder count: counts)
+				count.reset();
+			total.reset();
+			sum.reset();
+		}
+	}
+
+	public QueryMetrics() {
+		for(int i = 0; i < phases.length; i++)
+			phases[i] = new Histogram();
+	}
+
+	/**
+	 * Adds a finished lookup's trace to the totals.
+	 */
+	void record(QueryExplain trace) {
+		for(int phase = 0; phase < phases.length; phase++) {
+			long nanos = trace.getPhaseNanos(phase);
+			if(nanos >= 0)
+				phases[phase].record(nanos);
+		}
+		nodesVisited.add(trace.getNodesVisited());
+		candidates.add(trace.getCandidateCount());
+		if(!trace.isResultCacheHit() && !trace.isGridAnswer())
+			matches.add(trace.getMatchCount());
+		verticesExamined.add(trace.getVerticesExamined());
+		recordCacheHits.add(trace.getRecordCacheHits());
+		recordCacheMisses.add(trace.getRecordCacheMisses());
+		if(trace.isResultCacheHit())
+			resultCacheHits.increment();
+		if(trace.isGridAnswer())
+			gridAnswers.increment();
+	}
+
+	/**
+	 * Publishes these metrics on the platform MBean server under
+	 * net.theatticlight.Shapely:type=QueryMetrics,layer=&lt;layer&gt;.
+	 */
+	public ObjectName register(String layer) throws JMException {
+		ObjectName name = new ObjectName("net.theatticlight.Shapely:type=QueryMetrics,layer=" + ObjectName.quote(layer));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		registeredName = name;
+		return name;
+	}
+
+	public void unregister() throws JMException {
+		ObjectName name = registeredName;
+		if(name != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			registeredName = null;
+		}
+	}
+
+	public long getCount(int phase) {
+		return phases[phase].count();
+	}
+
+	public double getMeanNanos(int phase) {
+		return phases[phase].mean();
+	}
+
+	/**
+	 * Latency below which the given percentage, 0 to 100, of the phase's
+	 * recordings fall.
+	 */
+	public long getPercentileNanos(int phase, double percentile) {
+		return phases[phase].percentile(percentile);
+	}
+
+	public double percentileMicros(String phase, double percentile) {
+		for(int i = 0; i < PHASE_NAMES.length; i++)
+			if(PHASE_NAMES[i].equalsIgnoreCase(phase))
+				return getPercentileNanos(i, percentile) / 1000.0;
+		throw new IllegalArgumentException("No such phase: " + phase);
+	}
+
+	public void reset() {
+		for(Histogram histogram: phases)
+			histogram.reset();
+		for(LongAdder counter: new LongAdder[] {nodesVisited, candidates, matches, verticesExamined,
+				resultCacheHits, gridAnswers, recordCacheHits, recordCacheMisses})
+			counter.reset();
+	}
+
+	public long getQueryCount() {
+		return phases[QUERY].count();
+	}
+
+	public double getQueryMeanMicros() {
+		return phases[QUERY].mean() / 1000;
+	}
+
+	public double getQueryP99Micros() {
+		return phases[QUERY].percentile(99) / 1000.0;
+	}
+
+	public double getIndexMeanMicros() {
+		return phases[INDEX].mean() / 1000;
+	}
+
+	public double getIndexP99Micros() {
+		return phases[INDEX].percentile(99) / 1000.0;
+	}
+
+	public double getFetchMeanMicros() {
+		return phases[FETCH].mean() / 1000;
+	}
+
+	public double getFetchP99Micros() {
+		return phases[FETCH].percentile(99) / 1000.0;
+	}
+
+	public double getContainsMeanMicros() {
+		return phases[CONTAINS].mean() / 1000;
+	}
+
+	public double getContainsP99Micros() {
+		return phases[CONTAINS].percentile(99) / 1000.0;
+	}
+
+	public double getAttributesMeanMicros() {
+		return phases[ATTRIBUTES].mean() / 1000;
+	}
+
+	public double getAttributesP99Micros() {
+		return phases[ATTRIBUTES].percentile(99) / 1000.0;
+	}
+
+	public long getNodesVisited() {
+		return nodesVisited.sum();
+	}
+
+	public long getCandidates() {
+		return candidates.sum();
+	}
+
+	public long getMatches() {
+		return matches.sum();
+	}
+
+	/**
+	 * Fraction of candidates that passed the containment test. A low ratio
+	 * means the index is handing back many records whose bounds hold the
+	 * point but whose shapes don't.
+	 */
+	public double getMatchRatio() {
+		long candidates = this.candidates.sum();
+		return candidates == 0 ? 0 : (double)matches.sum() / candidates;
+	}
+
+	public long getVerticesExamined() {
+		return verticesExamined.sum();
+	}
+
+	public long getResultCacheHits() {
+		return resultCacheHits.sum();
+	}
+
+	public long getGridAnswers() {
+		return gridAnswers.sum();
+	}
+
+	public long getRecordCacheHits() {
+		return recordCacheHits.sum();
+	}
+
+	public long getRecordCacheMisses() {
+		return recordCacheMisses.sum();
+	}
+}
@@ -0,0 +1,33 @@
+package net.theatticlight.Shapely;
+
+/**
+ * Management interface QueryMetrics is published under. Latencies are in
+ * microseconds; phase names for percentileMicros are "query", "index",
+ * "fetch", "contains" and "attributes".
+ */
+public interface QueryMetricsMBean {
+	long getQueryCount();
+	double getQueryMeanMicros();
+	double getQueryP99Micros();
+	double getIndexMeanMicros();
+	double getIndexP99Micros();
+	double getFetchMeanMicros();
+	double getFetchP99Micros();
+	double getContainsMeanMicros();
+	double getContainsP99Micros();
+	double getAttributesMeanMicros();
+	double getAttributesP99Micros();
+
+	long getNodesVisited();
+	long getCandidates();
+	long getMatches();
+	double getMatchRatio();
+	long getVerticesExamined();
+	long getResultCacheHits();
+	long getGridAnswers();
+	long getRecordCacheHits();
+	long getRecordCacheMisses();
+
+	double percentileMicros(String phase, double percentile);
+	void reset();
+}
@@ -3,10 +3,13 @@ package net.theatticlight.Shapely;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 
 import net.theatticlight.Shapely.Record.XY;
 
 public class Record {
+	static final int[] NO_PARTS = new int[0];
 	
 	public static class ShapeException extends Exception {
 		ShapeException (String message) {
@@ -14,6 +17,23 @@ public class Record {
 		}
 	}
 	
+	/**
+	 * Thrown out of record streams and iterators, which can't throw checked
+	 * exceptions, when a record fails to decode. Read errors are thrown as
+	 * UncheckedIOException.
+	 */
+	public static class UncheckedShapeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		UncheckedShapeException (ShapeException cause) {
+			super(cause);
+		}
+		
+		public ShapeException getCause() {
+			return (ShapeException)super.getCause();
+		}
+	}
+	
 	public enum ShapeType {
 		NULLSHAPE,
 		POINT,
@@ -85,10 +105,17 @@ public class Record {
 		
 		ShapeHeader(RandomAccessFile file) throws IOException, ShapeException
 		{
-			file.seek(0);
-			byte[] barray = new byte[100];
-			ByteBuffer bb = ByteBuffer.wrap(barray);
-			file.read(barray);
+			this(readHeader(file));
+		}
+		
+		/**
+		 * Parses the 100 byte header at the start of the buffer.
+		 */
+		ShapeHeader(ByteBuffer file) throws ShapeException
+		{
+			ByteBuffer bb = file.duplicate();
+			bb.position(0);
+			bb.order(ByteOrder.BIG_ENDIAN);
 			
 			if(bb.getInt() != 9994)
 				throw new ShapeException("Bad ShapeFile");
@@ -110,6 +137,14 @@ public class Record {
 			maxM = Double.longBitsToDouble(Long.reverseBytes(bb.getLong()));
 		}
 		
+		private static ByteBuffer readHeader(RandomAccessFile file) throws IOException
+		{
+			file.seek(0);
+			byte[] barray = new byte[100];
+			file.readFully(barray);
+			return ByteBuffer.wrap(barray);
+		}
+		
 		public boolean equals(ShapeHeader header)
 		{
 			return 	this.fileSize == header.fileSize &&
@@ -176,21 +211,32 @@ public class Record {
 		
 		public double distanceToLineSegment(XY a, XY b)
 		{
-			Vect v = new Vect(b).sub(b); 
-			Vect x = this.sub(a);
-			double s = x.dotProd(v) / v.dotProd(v);
-			if(s < 1 && s > 0)
-				return this.distance(v.scale(s).add(a));
-			else if ( s >= 1)
-				return this.distance(b);
-			else
-				return this.distance(a);
+			return Math.sqrt(segmentDistanceSquared(X, Y, a.getX(), a.getY(), b.getX(), b.getY()));
+		}
+		
+		/**
+		 * Squared distance from (px, py) to the segment from (ax, ay) to
+		 * (bx, by): to the nearest endpoint when the point projects outside
+		 * the segment, otherwise to its projection.
+		 */
+		static double segmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by)
+		{
+			double vx = bx - ax, vy = by - ay;
+			double wx = px - ax, wy = py - ay;
+			double length = vx*vx + vy*vy;
+			double s = length > 0 ? (wx*vx + wy*vy) / length : 0;
+			if(s <= 0)
+				return wx*wx + wy*wy;
+			if(s >= 1)
+				return (px - bx)*(px - bx) + (py - by)*(py - by);
+			double dx = wx - s*vx, dy = wy - s*vy;
+			return dx*dx + dy*dy;
 		}
 		
 		public double perpendicularity(XY a, XY b)
 		{
-			Vect v = new Vect(b).sub(b); 
-			Vect x = this.sub(a);
+			Vect v = new Vect(a).sub(b); 
+			Vect x = new Vect(a).sub(this);
 			double s = x.dotProd(v) / v.dotProd(v);
 			return Math.abs(s-0.5);
 		}
@@ -207,6 +253,29 @@ public class Record {
 		}
 		
 		abstract public boolean inBoundry(XY point);
+		
+		/**
+		 * Distance from the point to the nearest part of the shape; zero
+		 * inside a polygon.
+		 */
+		public double distanceTo(XY point) {
+			return Math.sqrt(distanceSquared(point.getX(), point.getY()));
+		}
+		
+		double distanceSquared(double x, double y) {
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		public int getVertexCount() {
+			return 1;
+		}
+		
+		/**
+		 * Rough heap footprint of the shape, used to weigh cache entries.
+		 */
+		public long getSizeInBytes() {
+			return 32;
+		}
 	}
 	
 	public class Point extends Shape implements XY{
@@ -219,7 +288,7 @@ public class Record {
 			this(xy.getX(), xy.getY());
 		}
 		
-		Point (ByteBuffer bb) throws IOException
+		Point (ByteBuffer bb)
 		{
 			super(bb);
 			X = Double.longBitsToDouble(Long.reverseBytes(bb.getLong()));
@@ -235,12 +304,16 @@ public class Record {
 		{
 			return this.X == point.getX() && this.Y == point.getY();
 		}
+		
+		double distanceSquared(double x, double y) {
+			return (X - x)*(X - x) + (Y - y)*(Y - y);
+		}
 	}
 	
 	public abstract class CompoundShape extends Shape {
 		final double minX, minY, maxX, maxY;
 
-		CompoundShape (ByteBuffer bb) throws IOException
+		CompoundShape (ByteBuffer bb)
 		{
 			super(bb);
 			minX = Double.longBitsToDouble(Long.reverseBytes(bb.getLong()));
@@ -249,6 +322,18 @@ public class Record {
 			maxY = Double.longBitsToDouble(Long.reverseBytes(bb.getLong()));
 		}
 		
+		/**
+		 * Takes the bounding box from the record header, for shapes built
+		 * from a snapshot's packed arrays.
+		 */
+		CompoundShape ()
+		{
+			minX = Record.this.minX;
+			minY = Record.this.minY;
+			maxX = Record.this.maxX;
+			maxY = Record.this.maxY;
+		}
+		
 		protected boolean inBoundingBox(XY point)
 		{
 			return 
@@ -259,17 +344,106 @@ public class Record {
 		}
 	}
 	
-	public class MultiPoint extends CompoundShape {
-		final Point[] points;
+	/**
+	 * Reads count little endian X,Y pairs into a single interleaved array
+	 * in one bulk copy, leaving the buffer positioned after them.
+	 */
+	static double[] readCoordinates(ByteBuffer bb, int count)
+	{
+		double[] coords = new double[count*2];
+		ByteBuffer le = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+		le.asDoubleBuffer().get(coords);
+		bb.position(bb.position() + count*16);
+		return coords;
+	}
+	
+	/**
+	 * Base for shapes whose vertices are held packed as X,Y pairs in one
+	 * double array rather than as a Point object per vertex. Parts, where the
+	 * shape has them, are offsets in vertices into that array.
+	 */
+	public abstract class VertexShape extends CompoundShape {
+		final int[] parts;
+		final double[] coords;
 		
-		MultiPoint (ByteBuffer bb) throws IOException
+		VertexShape (ByteBuffer bb, boolean hasParts)
+		{
+			this(bb, hasParts, false);
+		}
+		
+		/**
+		 * With hasPartTypes, the multipatch part types that follow the part
+		 * offsets are skipped over; MultiPatch reads them itself.
+		 */
+		VertexShape (ByteBuffer bb, boolean hasParts, boolean hasPartTypes)
 		{
 			super(bb);
-			int count = Integer.reverseBytes(bb.getInt());
-			Point[] points = new Point[count];
-			for(int i = 0; i < count; i++)
-				points[i] = new Point(bb);
-			this.points = points;
+			
+			int countParts = hasParts ? Integer.reverseBytes(bb.getInt()) : 0;
+			int countPoints = Integer.reverseBytes(bb.getInt());
+			
+			int[] parts = new int[countParts];
+			for(int i = 0; i < countParts; i++)
+				parts[i] = Integer.reverseBytes(bb.getInt());
+			if(hasPartTypes)
+				bb.position(bb.position() + countParts*4);
+			
+			this.parts = parts;
+			this.coords = readCoordinates(bb, countPoints);
+		}
+		
+		VertexShape (int[] parts, double[] coords)
+		{
+			this.parts = parts;
+			this.coords = coords;
+		}
+		
+		public int getPointCount() {
+			return coords.length / 2;
+		}
+		
+		public int getVertexCount() {
+			return getPointCount();
+		}
+		
+		public long getSizeInBytes() {
+			return 80 + parts.length*4 + coords.length*8;
+		}
+		
+		public double getX(int i) {
+			return coords[2*i];
+		}
+		
+		public double getY(int i) {
+			return coords[2*i+1];
+		}
+		
+		public Point getPoint(int i) {
+			return new Point(coords[2*i], coords[2*i+1]);
+		}
+		
+		/**
+		 * Builds Point objects for every vertex. Kept for callers of the old
+		 * object per vertex layout; prefer getX/getY in loops.
+		 */
+		public Point[] getPoints() {
+			Point[] points = new Point[getPointCount()];
+			for(int i = 0; i < points.length; i++)
+				points[i] = getPoint(i);
+			return points;
+		}
+	}
+	
+	public class MultiPoint extends VertexShape {
+		
+		MultiPoint (ByteBuffer bb)
+		{
+			super(bb, false);
+		}
+		
+		MultiPoint (double[] coords)
+		{
+			super(NO_PARTS, coords);
 		}
 		
 		public boolean inBoundry(XY point)
@@ -277,35 +451,36 @@ public class Record {
 			if(!inBoundingBox(point))
 				return false;
 			
-			for(Point lPoint : points)
-				if(lPoint.inBoundry(point))
+			for(int i = 0; i < coords.length; i += 2)
+				if(coords[i] == point.getX() && coords[i+1] == point.getY())
 					return true;
 			
 			return false;
 		}
+		
+		double distanceSquared(double x, double y) {
+			double best = Double.POSITIVE_INFINITY;
+			for(int i = 0; i < coords.length; i += 2)
+				best = Math.min(best, (coords[i] - x)*(coords[i] - x) + (coords[i+1] - y)*(coords[i+1] - y));
+			return best;
+		}
 	}
 	
-	public class PolyLine extends CompoundShape {
-		final int[] parts;
-		final Point[] points;
+	public class PolyLine extends VertexShape {
 		
-		PolyLine (ByteBuffer bb) throws IOException
+		PolyLine (ByteBuffer bb)
 		{
-			super(bb);
-			
-			int countParts = Integer.reverseBytes(bb.getInt());
-			int countPoints = Integer.reverseBytes(bb.getInt());
-			
-			int[] parts = new int[countParts];
-			for(int i = 0; i < countParts; i++)
-				parts[i] = Integer.reverseBytes(bb.getInt());
-			
-			Point[] points = new Point[countPoints];
-			for(int i = 0; i < countPoints; i++)
-				points[i] = new Point(bb);
-			
-			this.parts = parts;
-			this.points = points;
+			super(bb, true);
+		}
+		
+		PolyLine (ByteBuffer bb, boolean hasPartTypes)
+		{
+			super(bb, true, hasPartTypes);
+		}
+		
+		PolyLine (int[] parts, double[] coords)
+		{
+			super(parts, coords);
 		}
 
 		public boolean inBoundry(XY point)
@@ -315,13 +490,100 @@ public class Record {
 			
 			return true;
 		}
+		
+		/**
+		 * Nearest approach of any part's segments to the point.
+		 */
+		double distanceSquared(double x, double y) {
+			double best = Double.POSITIVE_INFINITY;
+			for(int part = 0; part < parts.length; part++) {
+				int end = part + 1 < parts.length ? parts[part+1] : getPointCount();
+				best = Math.min(best, segmentsDistanceSquared(x, y, parts[part], end));
+			}
+			return best;
+		}
+		
+		double segmentsDistanceSquared(double x, double y, int start, int end) {
+			if(end - start == 1)
+				return (coords[2*start] - x)*(coords[2*start] - x) + (coords[2*start+1] - y)*(coords[2*start+1] - y);
+			double best = Double.POSITIVE_INFINITY;
+			for(int i = start + 1; i < end; i++)
+				best = Math.min(best, Vect.segmentDistanceSquared(x, y,
+						coords[2*i-2], coords[2*i-1], coords[2*i], coords[2*i+1]));
+			return best;
+		}
 	}
 	
 
 	public class Polygon extends PolyLine {
-		Polygon (ByteBuffer bb) throws IOException
+		final double[] ringBounds;
+		private volatile EdgeIndex edgeIndex;
+		
+		Polygon (ByteBuffer bb)
 		{
 			super(bb);
+			ringBounds = computeRingBounds();
+		}
+		
+		Polygon (int[] parts, double[] coords)
+		{
+			super(parts, coords);
+			ringBounds = computeRingBounds();
+		}
+		
+		private double[] computeRingBounds()
+		{
+			double[] ringBounds = new double[parts.length*4];
+			for(int ring = 0; ring < parts.length; ring++)
+			{
+				double rMinX = Double.POSITIVE_INFINITY, rMinY = Double.POSITIVE_INFINITY;
+				double rMaxX = Double.NEGATIVE_INFINITY, rMaxY = Double.NEGATIVE_INFINITY;
+				for(int i = parts[ring]; i < ringEnd(ring); i++)
+				{
+					double x = coords[2*i], y = coords[2*i+1];
+					if(x < rMinX) rMinX = x;
+					if(x > rMaxX) rMaxX = x;
+					if(y < rMinY) rMinY = y;
+					if(y > rMaxY) rMaxY = y;
+				}
+				ringBounds[ring*4] = rMinX;
+				ringBounds[ring*4+1] = rMinY;
+				ringBounds[ring*4+2] = rMaxX;
+				ringBounds[ring*4+3] = rMaxY;
+			}
+			return ringBounds;
+		}
+		
+		/**
+		 * Index one past the last vertex of the given ring.
+		 */
+		int ringEnd(int ring)
+		{
+			return ring + 1 < parts.length ? parts[ring+1] : getPointCount();
+		}
+		
+		public long getSizeInBytes() {
+			EdgeIndex edges = edgeIndex;
+			return super.getSizeInBytes() + ringBounds.length*8 + (edges == null ? 0 : edges.getSizeInBytes());
+		}
+		
+		/**
+		 * Builds the edge index used to answer containment tests on large
+		 * polygons from the few edges near the query point. Safe to call
+		 * repeatedly and from several threads; only the first call does work.
+		 */
+		public void prepare()
+		{
+			if(edgeIndex != null)
+				return;
+			synchronized(this) {
+				if(edgeIndex == null)
+					edgeIndex = new EdgeIndex(coords, parts, minY, maxY);
+			}
+		}
+		
+		public boolean isPrepared() {
+			return edgeIndex != null;
 		}
 
 		/**
@@ -329,84 +591,734 @@ public class Record {
 		 */
 		public boolean inBoundry(XY point)
 		{
-			if(!inBoundingBox(point))
+			return contains(point.getX(), point.getY());
+		}
+		
+		/**
+		 * Even-odd crossing test of a ray cast from the point towards +X. Parity
+		 * is accumulated over every ring so holes cancel the ring around them.
+		 * A ring whose bounds exclude the point can't change the parity and is
+		 * skipped without looking at its vertices.
+		 */
+		public boolean contains(double x, double y)
+		{
+			return contains(x, y, null);
+		}
+		
+		/**
+		 * As contains, adding the number of vertices looked at to the
+		 * trace's count when there is a trace.
+		 */
+		boolean contains(double x, double y, QueryExplain trace)
+		{
+			if(x < minX || x > maxX || y < minY || y > maxY)
 				return false;
-
-	        double xRatio = 1000 / (maxX - minX);
-	        double yRatio = 1000 / (maxY - minY); 
 			
-			Vect ps[] = new Vect[points.length];
-			for(int i = 0; i < points.length; i++)
-				ps[i] = new Vect(	(points[i].X-minX)*xRatio,
-									(points[i].Y-minY)*yRatio);
-			
-			Vect p = new Vect(	(point.getX()-minX)*xRatio,
-								(point.getY()-minY)*yRatio);
+			EdgeIndex edges = edgeIndex;
+			if(edges != null)
+			{
+				if(trace != null)
+					trace.examined += edges.edgesAt(y);
+				return edges.contains(coords, x, y);
+			}
 			
-			int closest = 1;
-			int part = 1;
-			for(int i = 2; i < ps.length; i++)
+			boolean inside = false;
+			for(int ring = 0; ring < parts.length; ring++)
 			{
-				if(	(part < parts.length) &&
-					parts[part] == i)
-					part++;
-				else if(!ps[i].equals(ps[i-1]))
+				int b = ring*4;
+				if(	x < ringBounds[b] || y < ringBounds[b+1] ||
+					x > ringBounds[b+2] || y > ringBounds[b+3])
+					continue;
+				
+				int start = parts[ring];
+				int end = ringEnd(ring);
+				if(trace != null)
+					trace.examined += end - start;
+				for(int i = start, j = end - 1; i < end; j = i++)
 				{
-					double mag = (	p.distanceToLineSegment(ps[i-1],ps[i]) -
-									p.distanceToLineSegment(ps[closest-1],ps[closest]));
-					if (mag < 0)
-					{
-						closest = i;
-					}
-					else if(mag == 0)
+					double yi = coords[2*i+1];
+					double yj = coords[2*j+1];
+					if((yi > y) != (yj > y))
 					{
-						if(	p.perpendicularity(ps[i-1],ps[i]) < 
-							p.perpendicularity(ps[closest-1],ps[closest]))
-							closest = i;
+						double xi = coords[2*i];
+						double xj = coords[2*j];
+						if(x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+							inside = !inside;
 					}
 				}
 			}
+			return inside;
+		}
+		
+		/**
+		 * Zero inside the polygon, otherwise the distance to the nearest ring
+		 * edge. Rings whose bounds are already further than the best edge so
+		 * far are skipped.
+		 */
+		double distanceSquared(double x, double y)
+		{
+			if(contains(x, y))
+				return 0;
 			
-			Vect first = ps[closest-1];
-			Vect second = ps[closest];
-				
-			return ((first.X - second.X)*(p.Y -second.Y) - ((first.Y - second.Y)*(p.X-second.X))) > 0;
+			double best = Double.POSITIVE_INFINITY;
+			for(int ring = 0; ring < parts.length; ring++)
+			{
+				int b = ring*4;
+				double dx = Math.max(Math.max(ringBounds[b] - x, x - ringBounds[b+2]), 0);
+				double dy = Math.max(Math.max(ringBounds[b+1] - y, y - ringBounds[b+3]), 0);
+				if(dx*dx + dy*dy < best)
+					best = Math.min(best, segmentsDistanceSquared(x, y, parts[ring], ringEnd(ring)));
 			}
+			return best;
+		}
+	}
+	
+	/**
+	 * Z and M values of a shape, read in place from the bytes that follow
+	 * its X,Y coordinates. Nothing is copied: each accessor returns a fresh
+	 * read only view over the record's content, so 2D queries on Z and M
+	 * layers never touch these values and cost the same as on plain layers.
+	 * Absent values read as null views and NaN ranges. M values below
+	 * -10^38 mean "no data" under the shapefile specification.
+	 */
+	public static class Measures {
+		final ByteBuffer values;
+		final int count;
+		final boolean ranged;
+		final int zStart;
+		final int mStart;
+		
+		/**
+		 * @param bb buffer positioned at the first byte after the X,Y values
+		 * @param count number of vertices
+		 * @param hasZ whether Z values come first; M values are optional
+		 * and present only if the content is long enough to hold them
+		 * @param ranged whether each array is preceded by its min and max,
+		 * as in every type but the single point ones
+		 */
+		Measures (ByteBuffer bb, int count, boolean hasZ, boolean ranged)
+		{
+			this.values = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+			this.count = count;
+			this.ranged = ranged;
+			int header = ranged ? 16 : 0;
+			int size = header + 8*count;
+			this.zStart = hasZ ? header : -1;
+			int mOffset = hasZ ? size : 0;
+			this.mStart = values.capacity() >= mOffset + size ? mOffset + header : -1;
+		}
+		
+		public boolean hasZ() {
+			return zStart >= 0;
+		}
+		
+		public boolean hasM() {
+			return mStart >= 0;
+		}
+		
+		/**
+		 * One Z value per vertex, in vertex order, or null without Z values.
+		 */
+		public DoubleBuffer getZ() {
+			return view(zStart);
+		}
+		
+		/**
+		 * One M value per vertex, in vertex order, or null without M values.
+		 */
+		public DoubleBuffer getM() {
+			return view(mStart);
+		}
+		
+		public double getMinZ() {
+			return bound(zStart, 16);
+		}
+		
+		public double getMaxZ() {
+			return bound(zStart, 8);
+		}
+		
+		public double getMinM() {
+			return bound(mStart, 16);
+		}
+		
+		public double getMaxM() {
+			return bound(mStart, 8);
+		}
+		
+		private double bound(int start, int back) {
+			if(start < 0)
+				return Double.NaN;
+			return values.getDouble(ranged ? start - back : start);
+		}
+		
+		private DoubleBuffer view(int start) {
+			if(start < 0)
+				return null;
+			ByteBuffer bb = values.duplicate();
+			bb.position(start);
+			bb.limit(start + 8*count);
+			return bb.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().asReadOnlyBuffer();
+		}
+		
+		long getSizeInBytes() {
+			return 48 + (values.hasArray() ? values.capacity() : 0);
+		}
+	}
+	
+	/**
+	 * Implemented by the Z, M and multipatch shapes.
+	 */
+	public interface Measured {
+		Measures getMeasures();
+	}
+	
+	public class PointZ extends Point implements Measured {
+		final Measures measures;
+		
+		PointZ (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, 1, true, false);
+		}
+		
+		PointZ (double X, double Y, Measures measures)
+		{
+			super(X, Y);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class PointM extends Point implements Measured {
+		final Measures measures;
+		
+		PointM (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, 1, false, false);
+		}
+		
+		PointM (double X, double Y, Measures measures)
+		{
+			super(X, Y);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class MultiPointZ extends MultiPoint implements Measured {
+		final Measures measures;
+		
+		MultiPointZ (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), true, true);
+		}
+		
+		MultiPointZ (double[] coords, Measures measures)
+		{
+			super(coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class MultiPointM extends MultiPoint implements Measured {
+		final Measures measures;
+		
+		MultiPointM (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), false, true);
+		}
+		
+		MultiPointM (double[] coords, Measures measures)
+		{
+			super(coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class PolyLineZ extends PolyLine implements Measured {
+		final Measures measures;
+		
+		PolyLineZ (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), true, true);
+		}
+		
+		PolyLineZ (int[] parts, double[] coords, Measures measures)
+		{
+			super(parts, coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class PolyLineM extends PolyLine implements Measured {
+		final Measures measures;
+		
+		PolyLineM (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), false, true);
+		}
+		
+		PolyLineM (int[] parts, double[] coords, Measures measures)
+		{
+			super(parts, coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class PolygonZ extends Polygon implements Measured {
+		final Measures measures;
+		
+		PolygonZ (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), true, true);
+		}
+		
+		PolygonZ (int[] parts, double[] coords, Measures measures)
+		{
+			super(parts, coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	public class PolygonM extends Polygon implements Measured {
+		final Measures measures;
+		
+		PolygonM (ByteBuffer bb)
+		{
+			super(bb);
+			measures = new Measures(bb, getPointCount(), false, true);
+		}
+		
+		PolygonM (int[] parts, double[] coords, Measures measures)
+		{
+			super(parts, coords);
+			this.measures = measures;
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + measures.getSizeInBytes();
+		}
+	}
+	
+	/**
+	 * Surface made of triangle strips, triangle fans and rings. A point is
+	 * inside when it falls in one of the triangles or, by the even-odd rule,
+	 * within the rings, which holds for the outer/inner and first/ring
+	 * groupings alike when the patch is seen from above.
+	 */
+	public class MultiPatch extends PolyLine implements Measured {
+		public static final int TRIANGLE_STRIP = 0;
+		public static final int TRIANGLE_FAN = 1;
+		public static final int OUTER_RING = 2;
+		public static final int INNER_RING = 3;
+		public static final int FIRST_RING = 4;
+		public static final int RING = 5;
+		
+		final int[] partTypes;
+		final Measures measures;
+		
+		MultiPatch (ByteBuffer bb)
+		{
+			super(bb, true);
+			int typesAt = bb.position() - coords.length*8 - parts.length*4;
+			int[] partTypes = new int[parts.length];
+			for(int i = 0; i < partTypes.length; i++)
+				partTypes[i] = Integer.reverseBytes(bb.getInt(typesAt + i*4));
+			this.partTypes = partTypes;
+			measures = new Measures(bb, getPointCount(), true, true);
+		}
+		
+		MultiPatch (int[] parts, int[] partTypes, double[] coords, Measures measures)
+		{
+			super(parts, coords);
+			this.partTypes = partTypes;
+			this.measures = measures;
+		}
+		
+		public int getPartType(int part) {
+			return partTypes[part];
+		}
+		
+		public Measures getMeasures() {
+			return measures;
+		}
+		
+		public long getSizeInBytes() {
+			return super.getSizeInBytes() + partTypes.length*4 + measures.getSizeInBytes();
+		}
+		
+		public boolean inBoundry(XY point)
+		{
+			return contains(point.getX(), point.getY());
+		}
+		
+		public boolean contains(double x, double y)
+		{
+			if(x < minX || x > maxX || y < minY || y > maxY)
+				return false;
+			
+			boolean inside = false;
+			for(int part = 0; part < parts.length; part++)
+			{
+				int start = parts[part];
+				int end = part + 1 < parts.length ? parts[part+1] : getPointCount();
+				switch(partTypes[part])
+				{
+				case TRIANGLE_STRIP:
+					for(int i = start + 2; i < end; i++)
+						if(inTriangle(x, y, i - 2, i - 1, i))
+							return true;
+					break;
+				case TRIANGLE_FAN:
+					for(int i = start + 2; i < end; i++)
+						if(inTriangle(x, y, start, i - 1, i))
+							return true;
+					break;
+				default:
+					for(int i = start, j = end - 1; i < end; j = i++)
+					{
+						double yi = coords[2*i+1];
+						double yj = coords[2*j+1];
+						if((yi > y) != (yj > y) &&
+							x < (coords[2*j] - coords[2*i]) * (y - yi) / (yj - yi) + coords[2*i])
+							inside = !inside;
+					}
+				}
+			}
+			return inside;
+		}
+		
+		private boolean inTriangle(double x, double y, int a, int b, int c)
+		{
+			double ab = cross(a, b, x, y);
+			double bc = cross(b, c, x, y);
+			double ca = cross(c, a, x, y);
+			return (ab >= 0 && bc >= 0 && ca >= 0) || (ab <= 0 && bc <= 0 && ca <= 0);
+		}
+		
+		private double cross(int a, int b, double x, double y)
+		{
+			return (coords[2*b] - coords[2*a]) * (y - coords[2*a+1]) - (coords[2*b+1] - coords[2*a+1]) * (x - coords[2*a]);
+		}
+		
+		double distanceSquared(double x, double y) {
+			return contains(x, y) ? 0 : super.distanceSquared(x, y);
+		}
 	}
 	
 		final int recordNumber;
 		final int shapeSize;
 		final ShapeType shapeType;
-		final Shape shape;
+		final double minX, minY, maxX, maxY;
+		final int vertexCount;
+		final int heapBytes;
+		
+		private ByteBuffer content;
+		private final PackedRecords source;
+		private volatile Shape shape;
+		
+		public int getRecordNumber() {
+			return recordNumber;
+		}
+		
+		public ShapeType getShapeType() {
+			return shapeType;
+		}
+		
+		public double getMinX() { return minX; }
+		public double getMinY() { return minY; }
+		public double getMaxX() { return maxX; }
+		public double getMaxY() { return maxY; }
+		
+		/**
+		 * Whether the point lies within the record's bounding box, answered
+		 * from the record header without decoding any geometry.
+		 */
+		public boolean boundsContain(double x, double y) {
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+		
+		/**
+		 * Squared distance from the point to the bounding box, a lower bound
+		 * on the distance to the shape.
+		 */
+		double boundsDistanceSquared(double x, double y) {
+			double dx = Math.max(Math.max(minX - x, x - maxX), 0);
+			double dy = Math.max(Math.max(minY - y, y - maxY), 0);
+			return dx*dx + dy*dy;
+		}
+		
+		public boolean isDecoded() {
+			return shape != null;
+		}
+		
+		/**
+		 * The record's geometry, decoded the first time it is asked for. Every
+		 * caller gets the same Shape, so state built on it, such as a prepared
+		 * polygon's edge index, is shared.
+		 */
+		public Shape getShape() {
+			Shape shape = this.shape;
+			if(shape == null) {
+				synchronized(this) {
+					shape = this.shape;
+					if(shape == null) {
+						shape = decode();
+						this.shape = shape;
+						content = null;
+					}
+				}
+			}
+			return shape;
+		}
+		
+		public int getVertexCount() {
+			return vertexCount;
+		}
+		
+		public long getSizeInBytes() {
+			Shape shape = this.shape;
+			return 80 + (shape == null ? heapBytes : shape.getSizeInBytes());
+		}
 		
 		Record (RandomAccessFile file) throws IOException, ShapeException
 		{
-			recordNumber = file.readInt();
-			shapeSize = file.readInt();
+			this(readRecord(file));
+		}
+		
+		/**
+		 * Reads the header of the record starting at the buffer's position:
+		 * its number, type, bounding box and vertex count. The rest of the
+		 * content is kept as a slice of the buffer and only decoded by
+		 * getShape, so candidates rejected on their bounding box never have
+		 * their vertices converted. Only the passed buffer's position is
+		 * moved, so callers sharing a mapped file between threads each pass
+		 * their own duplicate of it.
+		 */
+		Record (ByteBuffer file) throws IOException, ShapeException
+		{
+			source = null;
+			recordNumber = file.getInt();
+			shapeSize = file.getInt();
 			
-			byte[] barray = new byte[shapeSize*2];
-			ByteBuffer bb = ByteBuffer.wrap(barray);
-			file.read(barray);
+			ByteBuffer bb = file.slice();
+			bb.limit(shapeSize*2);
+			content = bb;
+			heapBytes = bb.hasArray() ? bb.capacity() : 0;
 			
-			shapeType = ShapeType.getShape(Integer.reverseBytes(bb.getInt()));
+			ByteBuffer le = bb.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			shapeType = ShapeType.getShape(le.getInt(0));
 			
 			switch (shapeType)
 			{
 			case POINT:
-				shape = new Point(bb);
-				break;
-			case POLYLINE:
-				shape = new PolyLine(bb);
+			case POINTZ:
+			case POINTM:
+				minX = maxX = le.getDouble(4);
+				minY = maxY = le.getDouble(12);
+				vertexCount = 1;
 				break;
 			case MULTIPOINT:
-				shape = new MultiPoint(bb);
-				break;
-			case POLYGON:
-				shape = new Polygon(bb);
+			case MULTIPOINTZ:
+			case MULTIPOINTM:
+				minX = le.getDouble(4);
+				minY = le.getDouble(12);
+				maxX = le.getDouble(20);
+				maxY = le.getDouble(28);
+				vertexCount = le.getInt(36);
 				break;
+			case NULLSHAPE:
+				throw new ShapeException("Unhandled shape type: " + shapeType);
 			default:
+				minX = le.getDouble(4);
+				minY = le.getDouble(12);
+				maxX = le.getDouble(20);
+				maxY = le.getDouble(28);
+				vertexCount = le.getInt(40);
+			}
+		}
+		
+		/**
+		 * A record of a snapshot. The header values are looked up in its
+		 * per record arrays, and getShape builds the geometry from slices of
+		 * its packed vertex, part and measure arrays.
+		 */
+		Record (PackedRecords source, int recordNumber) throws ShapeException
+		{
+			this.source = source;
+			this.recordNumber = recordNumber;
+			shapeSize = 0;
+			heapBytes = 0;
+			
+			shapeType = ShapeType.getShape(source.getShapeType(recordNumber));
+			if(shapeType == ShapeType.NULLSHAPE)
 				throw new ShapeException("Unhandled shape type: " + shapeType);
+			
+			int b = (recordNumber-1)*4;
+			minX = source.bounds.get(b);
+			minY = source.bounds.get(b+1);
+			maxX = source.bounds.get(b+2);
+			maxY = source.bounds.get(b+3);
+			vertexCount = source.getVertexCount(recordNumber);
+		}
+		
+		private Shape decode()
+		{
+			if(source != null)
+				return unpack();
+			
+			ByteBuffer bb = content.duplicate();
+			bb.position(4);
+			switch (shapeType)
+			{
+			case POINT:
+				return new Point(bb);
+			case POLYLINE:
+				return new PolyLine(bb);
+			case MULTIPOINT:
+				return new MultiPoint(bb);
+			case POLYGON:
+				return new Polygon(bb);
+			case POINTZ:
+				return new PointZ(bb);
+			case POLYLINEZ:
+				return new PolyLineZ(bb);
+			case POLYGONZ:
+				return new PolygonZ(bb);
+			case MULTIPOINTZ:
+				return new MultiPointZ(bb);
+			case POINTM:
+				return new PointM(bb);
+			case POLYLINEM:
+				return new PolyLineM(bb);
+			case POLYGONM:
+				return new PolygonM(bb);
+			case MULTIPOINTM:
+				return new MultiPointM(bb);
+			default:
+				return new MultiPatch(bb);
+			}
+		}
+		
+		/**
+		 * Builds the shape from the snapshot arrays, as decode does from the
+		 * record content.
+		 */
+		private Shape unpack()
+		{
+			double[] coords = source.getCoordinates(recordNumber);
+			switch (shapeType)
+			{
+			case POINT:
+				return new Point(coords[0], coords[1]);
+			case POLYLINE:
+				return new PolyLine(source.getParts(recordNumber), coords);
+			case MULTIPOINT:
+				return new MultiPoint(coords);
+			case POLYGON:
+				return new Polygon(source.getParts(recordNumber), coords);
+			case POINTZ:
+				return new PointZ(coords[0], coords[1], measures(true, false));
+			case POLYLINEZ:
+				return new PolyLineZ(source.getParts(recordNumber), coords, measures(true, true));
+			case POLYGONZ:
+				return new PolygonZ(source.getParts(recordNumber), coords, measures(true, true));
+			case MULTIPOINTZ:
+				return new MultiPointZ(coords, measures(true, true));
+			case POINTM:
+				return new PointM(coords[0], coords[1], measures(false, false));
+			case POLYLINEM:
+				return new PolyLineM(source.getParts(recordNumber), coords, measures(false, true));
+			case POLYGONM:
+				return new PolygonM(source.getParts(recordNumber), coords, measures(false, true));
+			case MULTIPOINTM:
+				return new MultiPointM(coords, measures(false, true));
+			default:
+				return new MultiPatch(source.getParts(recordNumber), source.getPartTypes(recordNumber), coords, measures(true, true));
 			}
-			bb.clear();
+		}
+		
+		private Measures measures(boolean hasZ, boolean ranged)
+		{
+			return new Measures(source.getMeasures(recordNumber), vertexCount, hasZ, ranged);
+		}
+		
+		private static ByteBuffer readRecord(RandomAccessFile file) throws IOException
+		{
+			int recordNumber = file.readInt();
+			int shapeSize = file.readInt();
+			
+			byte[] barray = new byte[8 + shapeSize*2];
+			ByteBuffer bb = ByteBuffer.wrap(barray);
+			bb.putInt(recordNumber);
+			bb.putInt(shapeSize);
+			file.readFully(barray, 8, shapeSize*2);
+			bb.rewind();
+			return bb;
 		}
 }
@@ -0,0 +1,66 @@
+package net.theatticlight.Shapely;
+
+/**
+ * Cache of decoded records keyed by record number. Implementations must be
+ * safe to share between querying threads.
+ */
+public interface RecordCache {
+
+	/**
+	 * Gives the cost of holding a record in the cache. Capacities are
+	 * expressed in the same unit.
+	 */
+	public static interface Weigher {
+		public long weigh(Record record);
+	}
+
+	public static final Weigher ENTRIES = new Weigher() {
+		public long weigh(Record record) {
+			return 1;
+		}
+	};
+
+	public static final Weigher VERTICES = new Weigher() {
+		public long weigh(Record record) {
+			return record.getVertexCount();
+		}
+	};
+
+	public static final Weigher BYTES = new Weigher() {
+		public long weigh(Record record) {
+			return record.getSizeInBytes();
+		}
+	};
+
+	/**
+	 * Returns the cached record or null if it isn't present.
+	 */
+	public Record get(int recordNumber);
+
+	/**
+	 * Offers a freshly decoded record to the cache and returns the record
+	 * callers should use, which is an earlier cached copy if another thread
+	 * got there first.
+	 */
+	public Record put(int recordNumber, Record record);
+
+	/**
+	 * Weighs a cached record again after it has grown, such as when its
+	 * polygon is prepared. Does nothing if the record isn't cached.
+	 */
+	public void reweigh(int recordNumber);
+
+	public void clear();
+
+	public int size();
+
+	public long getWeight();
+
+	public long getCapacity();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public long getEvictionCount();
+}
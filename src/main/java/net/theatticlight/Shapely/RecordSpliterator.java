@@ -0,0 +1,91 @@
+package net.theatticlight.Shapely;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.Record.UncheckedShapeException;
+
+/**
+ * Walks a run of records straight out of a mapping of the .shp, in .shx
+ * order, without touching the record cache. Splitting halves the run by
+ * bytes rather than by record count, using the .shx offsets, so a file of
+ * a few huge polygons and many small ones still divides into even work.
+ */
+class RecordSpliterator implements Spliterator<Record> {
+	static final int MIN_SPLIT = 64;
+
+	final ShapeFile.Index index;
+	final ByteBuffer shapes;
+	int from;
+	final int to;
+
+	/**
+	 * Covers record numbers from up to, but not including, to.
+	 */
+	RecordSpliterator(ShapeFile.Index index, ByteBuffer shapes, int from, int to) {
+		this.index = index;
+		this.shapes = shapes;
+		this.from = from;
+		this.to = to;
+	}
+
+	public boolean tryAdvance(Consumer<? super Record> action) {
+		if(from >= to)
+			return false;
+		action.accept(read(from++));
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super Record> action) {
+		int end = to;
+		for(int recordNumber = from; recordNumber < end; recordNumber++)
+			action.accept(read(recordNumber));
+		from = end;
+	}
+
+	private Record read(int recordNumber) {
+		try {
+			return index.readRecord(shapes, recordNumber);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ShapeException e) {
+			throw new UncheckedShapeException(e);
+		}
+	}
+
+	/**
+	 * Splits off the first half of the remaining bytes. Offsets are searched
+	 * as if ascending, which they are in any file written front to back; if
+	 * they aren't the split is still valid, just less even.
+	 */
+	public Spliterator<Record> trySplit() {
+		if(to - from < MIN_SPLIT * 2)
+			return null;
+
+		long middle = ((long)index.getOffset(from) + index.getOffset(to - 1)) / 2;
+		int low = from + MIN_SPLIT, high = to - MIN_SPLIT;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(index.getOffset(mid) < middle)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		Spliterator<Record> prefix = new RecordSpliterator(index, shapes, from, low);
+		from = low;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return to - from;
+	}
+
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED | DISTINCT | NONNULL | IMMUTABLE;
+	}
+}
@@ -0,0 +1,286 @@
+package net.theatticlight.Shapely;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.SpatialIndex.SpatialIndexException;
+
+import com.hexiong.jdbf.JDBFException;
+
+/**
+ * A shapefile that is replaced in place when its files change on disk. Each
+ * load is a Version; a new one is built on a background thread, optionally
+ * warmed with the records that were hot in the one before, and then
+ * published with a single atomic swap. Queries never wait on a reload: they
+ * take whichever version is current, and a version's files are closed when
+ * the last query holding it lets go.
+ *
+ * Options are requested anew for every version so versions never share a
+ * record or result cache, whose keys are only meaningful within one load.
+ *
+ * New files must be written elsewhere on the same file system and renamed
+ * over the old ones, never overwritten in place. A version keeps reading
+ * the files it opened until its last query is done; a rename leaves those
+ * untouched, while writing into them would hand queries half-written data
+ * and, with mapped shapes, can crash the reading thread if a file shrinks.
+ * Only newly created names are watched for, so an in-place write is not
+ * picked up.
+ */
+public class ReloadableShapeFile implements Closeable {
+	/**
+	 * One load of the shapefile, reference counted. Obtain with acquire and
+	 * close when done; the ShapeFile must not be used after that.
+	 */
+	public static class Version implements Closeable {
+		final ShapeFile shapeFile;
+		final int generation;
+		final AtomicInteger references = new AtomicInteger(1);
+
+		Version(ShapeFile shapeFile, int generation) {
+			this.shapeFile = shapeFile;
+			this.generation = generation;
+		}
+
+		public ShapeFile getShapeFile() {
+			return shapeFile;
+		}
+
+		/**
+		 * Counts loads, starting at 1 for the one made by the constructor.
+		 */
+		public int getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Takes a reference unless the version has already been released.
+		 */
+		boolean retain() {
+			while(true) {
+				int count = references.get();
+				if(count == 0)
+					return false;
+				if(references.compareAndSet(count, count + 1))
+					return true;
+			}
+		}
+
+		public void close() throws IOException {
+			if(references.decrementAndGet() == 0)
+				shapeFile.close();
+		}
+	}
+
+	static final long QUIET_MILLIS = 2000;
+
+	final String basePath;
+	final Supplier<ShapeFile.Options> options;
+	final AtomicReference<Version> current = new AtomicReference<Version>();
+	volatile boolean prewarm = true;
+	volatile Exception lastFailure;
+	private WatchService watcher;
+
+	public ReloadableShapeFile(String basePath) throws IOException, JDBFException, ShapeException, SpatialIndexException {
+		this(basePath, new Supplier<ShapeFile.Options>() {
+			public ShapeFile.Options get() {
+				return new ShapeFile.Options();
+			}
+		});
+	}
+
+	/**
+	 * Loads the shapefile now. Call watch to reload it when it changes.
+	 *
+	 * @param options called once per load for the options to load with
+	 */
+	public ReloadableShapeFile(String basePath, Supplier<ShapeFile.Options> options) throws IOException, JDBFException, ShapeException, SpatialIndexException {
+		this.basePath = basePath;
+		this.options = options;
+		current.set(new Version(new ShapeFile(basePath, options.get()), 1));
+	}
+
+	/**
+	 * Whether a new version decodes the records hot in the previous one's
+	 * cache before it is published. On by default. Record numbers are
+	 * carried over as they are, which suits data revised in place; records
+	 * that moved are simply loaded on first use instead.
+	 */
+	public ReloadableShapeFile prewarm(boolean prewarm) {
+		this.prewarm = prewarm;
+		return this;
+	}
+
+	/**
+	 * The current version with a reference taken, to be closed by the
+	 * caller. Never blocks: a version released while being acquired is
+	 * passed over for the one that replaced it.
+	 */
+	public Version acquire() {
+		while(true) {
+			Version version = current.get();
+			if(version == null)
+				throw new IllegalStateException("Closed: " + basePath);
+			if(version.retain())
+				return version;
+		}
+	}
+
+	public List<Object> getInfoAtPoint(Record.XY xy, String field) throws IOException, ShapeException {
+		Version version = acquire();
+		try {
+			return version.shapeFile.getInfoAtPoint(xy, field);
+		} finally {
+			version.close();
+		}
+	}
+
+	public List<List<Object>> getInfoAtPoints(double[] xs, double[] ys, String field) throws IOException, ShapeException {
+		Version version = acquire();
+		try {
+			return version.shapeFile.getInfoAtPoints(xs, ys, field);
+		} finally {
+			version.close();
+		}
+	}
+
+	/**
+	 * Loads the files as they are now and publishes the result. Runs on the
+	 * calling thread; queries carry on against the old version meanwhile.
+	 * On failure the old version stays current.
+	 */
+	public synchronized void reload() throws IOException, JDBFException, ShapeException, SpatialIndexException {
+		Version old = current.get();
+		if(old == null)
+			throw new IllegalStateException("Closed: " + basePath);
+		ShapeFile shapeFile = new ShapeFile(basePath, options.get());
+		if(prewarm)
+			prewarm(old.shapeFile, shapeFile);
+
+		Version version = new Version(shapeFile, old.generation + 1);
+		if(!current.compareAndSet(old, version)) {
+			version.close();
+			throw new IllegalStateException("Closed: " + basePath);
+		}
+		old.close();
+	}
+
+	private static void prewarm(ShapeFile from, ShapeFile to) {
+		RecordCache cache = from.getRecordCache();
+		if(!(cache instanceof SegmentedLruCache))
+			return;
+		for(int recordNumber: ((SegmentedLruCache)cache).getHotRecordNumbers()) {
+			if(recordNumber < 1 || recordNumber > to.getRecordCount())
+				continue;
+			try {
+				to.getRecord(recordNumber).getShape();
+			} catch (IOException e) {
+				return;
+			} catch (ShapeException e) {
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that reloads once a .shp, .shx, .dbf or .qix
+	 * file has been renamed into place and no other has followed for a
+	 * couple of seconds, so a set of files moved in one by one is loaded
+	 * once they are all there.
+	 */
+	public synchronized ReloadableShapeFile watch() throws IOException {
+		if(watcher != null)
+			return this;
+		File base = new File(basePath).getAbsoluteFile();
+		final String name = base.getName();
+		final Path directory = base.getParentFile().toPath();
+		watcher = FileSystems.getDefault().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+
+		final WatchService watcher = this.watcher;
+		Thread watchThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(true) {
+						if(!changed(watcher.take(), name))
+							continue;
+						WatchKey key;
+						while((key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null)
+							changed(key, name);
+						try {
+							reload();
+							lastFailure = null;
+						} catch (Exception e) {
+							lastFailure = e;
+						}
+					}
+				} catch (InterruptedException e) {
+				} catch (ClosedWatchServiceException e) {
+				}
+			}
+		}, "Shapely reload " + name);
+		watchThread.setDaemon(true);
+		watchThread.start();
+		return this;
+	}
+
+	/**
+	 * Whether the key's events touch one of the shapefile's files. Resets
+	 * the key either way.
+	 */
+	private static boolean changed(WatchKey key, String name) {
+		boolean changed = false;
+		for(WatchEvent<?> event: key.pollEvents()) {
+			Object context = event.context();
+			if(context == null) {
+				changed = true;
+				continue;
+			}
+			String file = context.toString();
+			if(file.length() == name.length() + 4 && file.startsWith(name)) {
+				String extension = file.substring(name.length()).toLowerCase();
+				if(extension.equals(".shp") || extension.equals(".shx") || extension.equals(".dbf") || extension.equals(".qix"))
+					changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * The exception that stopped the last background reload, or null if it
+	 * succeeded.
+	 */
+	public Exception getLastReloadFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Stops watching and releases the current version, whose files close
+	 * once queries still holding it are done.
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			if(watcher != null) {
+				watcher.close();
+				watcher = null;
+			}
+		}
+		Version version = current.getAndSet(null);
+		if(version != null)
+			version.close();
+	}
+}
@@ -0,0 +1,184 @@
+package net.theatticlight.Shapely;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches which records matched a point, keyed on the fixed grid cell the
+ * point falls in. Every point inside a cell shares the answer first computed
+ * for that cell, so the cell size should be below the precision the caller
+ * cares about; a hit then skips the spatial index, record decoding and
+ * containment tests entirely.
+ *
+ * Entries are spread over independently locked LRU segments, fewer for small
+ * limits, whose limits add up to the cache's. A layer number
+ * is part of the key so one cache, and one memory budget, can be shared by
+ * several shapefiles.
+ */
+public class ResultCache {
+	static final int MAX_SEGMENTS = 16;
+	static final int MIN_SEGMENT_ENTRIES = 64;
+
+	final double precision;
+	final int maxEntries;
+	final Segment[] segments;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	static final class CellKey {
+		final int layer;
+		final long x;
+		final long y;
+
+		CellKey(int layer, long x, long y) {
+			this.layer = layer;
+			this.x = x;
+			this.y = y;
+		}
+
+		public int hashCode() {
+			long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + layer;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof CellKey))
+				return false;
+			CellKey key = (CellKey)o;
+			return key.x == x && key.y == y && key.layer == layer;
+		}
+	}
+
+	private class Segment extends LinkedHashMap<CellKey,int[]> {
+		private static final long serialVersionUID = 1L;
+		final int maxEntries;
+
+		Segment(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<CellKey,int[]> eldest) {
+			if(size() <= maxEntries)
+				return false;
+			evictions.increment();
+			return true;
+		}
+	}
+
+	/**
+	 * @param precision width and height of a grid cell in layer coordinates
+	 * @param maxEntries most cells kept before the least recently used go
+	 */
+	public ResultCache(double precision, int maxEntries) {
+		if(!(precision > 0))
+			throw new IllegalArgumentException("Precision must be positive: " + precision);
+		if(maxEntries <= 0)
+			throw new IllegalArgumentException("Entry limit must be positive: " + maxEntries);
+		this.precision = precision;
+		this.maxEntries = maxEntries;
+
+		int count = 1;
+		while(count < MAX_SEGMENTS && maxEntries / (count * 2) >= MIN_SEGMENT_ENTRIES)
+			count *= 2;
+		segments = new Segment[count];
+		for(int i = 0; i < count; i++)
+			segments[i] = new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+	}
+
+	CellKey key(int layer, double x, double y) {
+		return new CellKey(layer, (long)Math.floor(x / precision), (long)Math.floor(y / precision));
+	}
+
+	private Segment segmentFor(CellKey key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Record numbers cached for the cell holding the point, or null. The
+	 * array is a copy the caller may change.
+	 */
+	public int[] get(int layer, double x, double y) {
+		int[] records = getShared(layer, x, y);
+		return records == null ? null : records.clone();
+	}
+
+	/**
+	 * Caches a copy of the record numbers for the cell holding the point.
+	 */
+	public void put(int layer, double x, double y, int[] records) {
+		putShared(layer, x, y, records.clone());
+	}
+
+	/**
+	 * As get, but returns the cached array itself, which every thread
+	 * hitting the cell shares and nobody may modify.
+	 */
+	int[] getShared(int layer, double x, double y) {
+		CellKey key = key(layer, x, y);
+		Segment segment = segmentFor(key);
+		int[] records;
+		synchronized(segment) {
+			records = segment.get(key);
+		}
+		if(records == null)
+			misses.increment();
+		else
+			hits.increment();
+		return records;
+	}
+
+	/**
+	 * As put, but keeps the array itself, which the caller hands over and
+	 * must not modify afterwards.
+	 */
+	void putShared(int layer, double x, double y, int[] records) {
+		CellKey key = key(layer, x, y);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			segment.put(key, records);
+		}
+	}
+
+	public void clear() {
+		for(Segment segment: segments)
+			synchronized(segment) {
+				segment.clear();
+			}
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment segment: segments)
+			synchronized(segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+
+	public double getPrecision() {
+		return precision;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0 : (double)hits / total;
+	}
+}
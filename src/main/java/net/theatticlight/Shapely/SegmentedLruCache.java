@@ -0,0 +1,340 @@
+package net.theatticlight.Shapely;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Weighted segmented LRU cache of records. Keys are hashed onto independently
+ * locked segments so lookups from different threads rarely contend. Inside a
+ * segment new records enter a probation list and are promoted to a protected
+ * list on their second hit, so a burst of one off lookups can only flush the
+ * probation list and never the hot working set.
+ *
+ * Entries are weighed again whenever they are hit or reweigh is called, so
+ * memory a record grows after it was cached (such as a prepared polygon's
+ * edge index) is charged against the capacity.
+ */
+public class SegmentedLruCache implements RecordCache {
+	static final int MAX_SEGMENTS = 16;
+	static final int MIN_SEGMENT_CAPACITY = 64;
+
+	final Weigher weigher;
+	final long capacity;
+	final Segment[] segments;
+	final int segmentShift;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	static final class Node {
+		final int key;
+		final int hash;
+		final Record value;
+		long weight;
+		boolean hot;
+
+		Node next;
+		Node prev;
+		Node after;
+
+		Node(int key, int hash, Record value, long weight) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	final class Segment {
+		final long capacity;
+		final long protectedCapacity;
+
+		Node[] table = new Node[16];
+		int count;
+		long weight;
+		long protectedWeight;
+
+		final Node probation = new Node(0, 0, null, 0);
+		final Node protect = new Node(0, 0, null, 0);
+
+		Segment(long capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = capacity - capacity / 5;
+			probation.prev = probation.after = probation;
+			protect.prev = protect.after = protect;
+		}
+
+		synchronized Record get(int key, int hash) {
+			Node node = find(key, hash);
+			if(node == null)
+				return null;
+
+			Record value = node.value;
+			reweigh(node);
+			unlink(node);
+			if(!node.hot) {
+				node.hot = true;
+				protectedWeight += node.weight;
+			}
+			linkFirst(protect, node);
+
+			while(protectedWeight > protectedCapacity && protect.prev != node) {
+				Node demoted = protect.prev;
+				unlink(demoted);
+				demoted.hot = false;
+				protectedWeight -= demoted.weight;
+				linkFirst(probation, demoted);
+			}
+			evict(node);
+			return value;
+		}
+
+		synchronized Record put(int key, int hash, Record value) {
+			Node node = find(key, hash);
+			if(node != null)
+				return node.value;
+
+			long w = weigher.weigh(value);
+			if(w > capacity)
+				return value;
+
+			node = new Node(key, hash, value, w);
+			int i = hash & (table.length - 1);
+			node.next = table[i];
+			table[i] = node;
+			linkFirst(probation, node);
+			weight += w;
+			if(++count > table.length / 4 * 3)
+				resize();
+
+			evict(node);
+			return value;
+		}
+
+		synchronized void reweigh(int key, int hash) {
+			Node node = find(key, hash);
+			if(node == null)
+				return;
+			reweigh(node);
+			evict(node);
+		}
+
+		synchronized void clear() {
+			table = new Node[16];
+			count = 0;
+			weight = 0;
+			protectedWeight = 0;
+			probation.prev = probation.after = probation;
+			protect.prev = protect.after = protect;
+		}
+
+		synchronized int size() {
+			return count;
+		}
+
+		synchronized int[] hotKeys() {
+			int[] keys = new int[count];
+			int n = 0;
+			for(Node node = protect.after; node != protect; node = node.after)
+				keys[n++] = node.key;
+			return Arrays.copyOf(keys, n);
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+
+		private Node find(int key, int hash) {
+			for(Node node = table[hash & (table.length - 1)]; node != null; node = node.next)
+				if(node.key == key)
+					return node;
+			return null;
+		}
+
+		private void reweigh(Node node) {
+			long w = weigher.weigh(node.value);
+			if(w == node.weight)
+				return;
+			weight += w - node.weight;
+			if(node.hot)
+				protectedWeight += w - node.weight;
+			node.weight = w;
+		}
+
+		/**
+		 * Evicts least recently used entries, probation first, until the
+		 * segment fits its capacity. The entry just touched is only given up
+		 * when nothing else is left.
+		 */
+		private void evict(Node keep) {
+			while(weight > capacity) {
+				Node victim = probation.prev;
+				if(victim == probation || victim == keep) {
+					victim = protect.prev;
+					if(victim == protect || victim == keep)
+						victim = keep;
+				}
+				remove(victim);
+				evictions.increment();
+			}
+		}
+
+		private void remove(Node node) {
+			unlink(node);
+			int i = node.hash & (table.length - 1);
+			if(table[i] == node)
+				table[i] = node.next;
+			else
+				for(Node n = table[i]; n != null; n = n.next)
+					if(n.next == node) {
+						n.next = node.next;
+						break;
+					}
+			weight -= node.weight;
+			if(node.hot)
+				protectedWeight -= node.weight;
+			count--;
+		}
+
+		private void resize() {
+			Node[] old = table;
+			Node[] resized = new Node[old.length * 2];
+			for(Node head: old)
+				for(Node node = head; node != null;) {
+					Node next = node.next;
+					int i = node.hash & (resized.length - 1);
+					node.next = resized[i];
+					resized[i] = node;
+					node = next;
+				}
+			table = resized;
+		}
+
+		private void linkFirst(Node list, Node node) {
+			node.prev = list;
+			node.after = list.after;
+			list.after.prev = node;
+			list.after = node;
+		}
+
+		private void unlink(Node node) {
+			node.prev.after = node.after;
+			node.after.prev = node.prev;
+			node.prev = node.after = null;
+		}
+	}
+
+	/**
+	 * @param capacity total weight the cache may hold, in the weigher's unit
+	 * @param weigher cost of each record, such as RecordCache.BYTES
+	 */
+	public SegmentedLruCache(long capacity, Weigher weigher) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.weigher = weigher;
+
+		int count = 1;
+		while(count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY)
+			count *= 2;
+		segments = new Segment[count];
+		segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+
+		long segmentCapacity = capacity == Long.MAX_VALUE ? capacity : (capacity + count - 1) / count;
+		for(int i = 0; i < count; i++)
+			segments[i] = new Segment(segmentCapacity);
+	}
+
+	/**
+	 * A cache that never evicts, for layers small enough to keep every
+	 * decoded record in memory.
+	 */
+	public static SegmentedLruCache pinAll() {
+		return new SegmentedLruCache(Long.MAX_VALUE, ENTRIES);
+	}
+
+	private static int hash(int key) {
+		return key * 0x9E3779B9;
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	public Record get(int recordNumber) {
+		int hash = hash(recordNumber);
+		Record record = segmentFor(hash).get(recordNumber, hash);
+		if(record == null)
+			misses.increment();
+		else
+			hits.increment();
+		return record;
+	}
+
+	public Record put(int recordNumber, Record record) {
+		int hash = hash(recordNumber);
+		return segmentFor(hash).put(recordNumber, hash, record);
+	}
+
+	public void reweigh(int recordNumber) {
+		int hash = hash(recordNumber);
+		segmentFor(hash).reweigh(recordNumber, hash);
+	}
+
+	public void clear() {
+		for(Segment segment: segments)
+			segment.clear();
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment segment: segments)
+			size += segment.size();
+		return size;
+	}
+
+	/**
+	 * Numbers of the records hit more than once while cached, the working
+	 * set that survives one off lookups. Each segment lists its most
+	 * recently used first.
+	 */
+	public int[] getHotRecordNumbers() {
+		int[][] hot = new int[segments.length][];
+		int total = 0;
+		for(int i = 0; i < segments.length; i++) {
+			hot[i] = segments[i].hotKeys();
+			total += hot[i].length;
+		}
+		int[] numbers = new int[total];
+		int n = 0;
+		for(int[] keys: hot) {
+			System.arraycopy(keys, 0, numbers, n, keys.length);
+			n += keys.length;
+		}
+		return numbers;
+	}
+
+	public long getWeight() {
+		long weight = 0;
+		for(Segment segment: segments)
+			weight += segment.weight();
+		return weight;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+}
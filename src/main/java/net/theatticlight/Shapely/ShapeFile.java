@@ -6,31 +6,43 @@ import java.awt.Graphics;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.swing.BorderFactory;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
+import net.theatticlight.Shapely.AttributeTable.FieldHandle;
 import net.theatticlight.Shapely.Record.CompoundShape;
 import net.theatticlight.Shapely.Record.Point;
 import net.theatticlight.Shapely.Record.Polygon;
+import net.theatticlight.Shapely.Record.Shape;
 import net.theatticlight.Shapely.Record.ShapeException;
 import net.theatticlight.Shapely.Record.ShapeHeader;
 import net.theatticlight.Shapely.SpatialIndex.SpatialIndexException;
@@ -41,7 +53,7 @@ import com.hexiong.jdbf.DBFReader;
 import com.hexiong.jdbf.JDBFException;
 import com.hexiong.jdbf.JDBField;
 
-public class ShapeFile {
+public class ShapeFile implements Closeable {
 	
 	
 	public static class Index {
@@ -49,23 +61,17 @@ public class ShapeFile {
 		
 		static final int BUFFER_SIZE = 4096;
 		
-		private class CacheMap<K,V> extends LinkedHashMap<K,V> {
-			private static final long serialVersionUID = 1L;
-			private static final int MAX_ENTRIES = 25;
-			
-			protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
-				return size() > MAX_ENTRIES;
-			}
-		}
-		Map<Integer,Record> cache = new CacheMap<Integer,Record>();
+		final RecordCache cache;
 		
-		Index (String filePath) throws IOException
+		Index (String filePath, RecordCache cache) throws IOException
 		{
+			this.cache = cache;
+
 			FileInputStream indexFile = new FileInputStream(filePath);
 			indexFile.skip(100); //Skip Header
 			FileChannel channel = indexFile.getChannel();
 			
-			int numRecords = (int)(channel.size()/8);
+			int numRecords = (int)((channel.size() - 100)/8);
 			index = new int[numRecords];
 			
 			ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
@@ -82,40 +88,132 @@ public class ShapeFile {
 				}
 				bb.clear();
 			}
-			System.out.println(index[0]);
 			channel.close();
 			indexFile.close();
 		}
 		
+		Index (int[] index, RecordCache cache)
+		{
+			this.index = index;
+			this.cache = cache;
+		}
+		
 		public int getOffset(int index)
 		{
 			return this.index[index-1];
 		}
 		
+		int getRecordCount()
+		{
+			return index.length;
+		}
+		
+		/**
+		 * Reads only the bounding box of every record, four values per record,
+		 * without decoding any geometry. Null shapes get NaN bounds and points
+		 * get a zero sized box.
+		 */
+		double[] readRecordBounds(ByteBuffer shapes)
+		{
+			ByteBuffer bb = shapes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			double[] bounds = new double[index.length*4];
+			for(int i = 0; i < index.length; i++)
+			{
+				int offset = index[i] + 8;
+				int b = i*4;
+				switch(bb.getInt(offset))
+				{
+				case 0:
+					bounds[b] = bounds[b+1] = bounds[b+2] = bounds[b+3] = Double.NaN;
+					break;
+				case 1:
+				case 11:
+				case 21:
+					bounds[b] = bounds[b+2] = bb.getDouble(offset + 4);
+					bounds[b+1] = bounds[b+3] = bb.getDouble(offset + 12);
+					break;
+				default:
+					bounds[b] = bb.getDouble(offset + 4);
+					bounds[b+1] = bb.getDouble(offset + 12);
+					bounds[b+2] = bb.getDouble(offset + 20);
+					bounds[b+3] = bb.getDouble(offset + 28);
+				}
+			}
+			return bounds;
+		}
+		
 		public Record getRecord(RandomAccessFile file, int recordNumber) throws IOException, ShapeException
 		{
-			Integer key = new Integer(recordNumber);
-			if(cache.containsKey(key))
-				return cache.get(key);
+			return getRecord(file, recordNumber, null);
+		}
+		
+		/**
+		 * As getRecord, noting in the trace, if there is one, whether the
+		 * record came from the cache.
+		 */
+		Record getRecord(RandomAccessFile file, int recordNumber, QueryExplain trace) throws IOException, ShapeException
+		{
+			Record record = cache.get(recordNumber);
+			if(trace != null)
+				trace.fetched(record != null);
+			if(record != null)
+				return record;
 			
-			file.seek(getOffset(recordNumber));
-			Record record = new Record(file);
-			cache.put(key, record);
-			return record;
+			return cache.put(recordNumber, readRecord(file, recordNumber));
+		}
+		
+		/**
+		 * Reads a record from a mapping of the whole .shp file. The mapping is
+		 * never repositioned, so any number of threads may call this at once.
+		 */
+		public Record getRecord(ByteBuffer shapes, int recordNumber) throws IOException, ShapeException
+		{
+			return getRecord(shapes, recordNumber, null);
+		}
+		
+		Record getRecord(ByteBuffer shapes, int recordNumber, QueryExplain trace) throws IOException, ShapeException
+		{
+			Record record = cache.get(recordNumber);
+			if(trace != null)
+				trace.fetched(record != null);
+			if(record != null)
+				return record;
+			
+			return cache.put(recordNumber, readRecord(shapes, recordNumber));
+		}
+		
+		/**
+		 * Decodes a record without consulting or filling the cache, for passes
+		 * over the whole file that would only flush it.
+		 */
+		Record readRecord(RandomAccessFile file, int recordNumber) throws IOException, ShapeException
+		{
+			synchronized(file) {
+				file.seek(getOffset(recordNumber));
+				return new Record(file);
+			}
+		}
+		
+		Record readRecord(ByteBuffer shapes, int recordNumber) throws IOException, ShapeException
+		{
+			ByteBuffer bb = shapes.duplicate();
+			bb.position(getOffset(recordNumber));
+			return new Record(bb);
 		}
 	}
 	
-	public static class Descriptors {
+	public static class Descriptors implements AttributeTable {
 		final List<Object[]> descriptors;
 		final Map<String,Integer> fields;
 		
 		Descriptors (String filePath) throws FileNotFoundException, IOException, JDBFException
 		{
+			Charset charset = MappedDescriptors.charset(filePath);
 			DBFReader dbfr = new DBFReader(filePath);
 			
 			descriptors = new ArrayList<Object[]>();
 			while(dbfr.hasNextRecord())
-				descriptors.add(dbfr.nextRecord());
+				descriptors.add(dbfr.nextRecord(charset));
 			
 			fields = new HashMap<String,Integer>();
 			for(int i = 0; i < dbfr.getFieldCount(); i++)
@@ -130,56 +228,658 @@ public class ShapeFile {
 		{
 			return descriptors.get(recordNumber-1)[fields.get(fieldName).intValue()];
 		}
+		
+		public FieldHandle getField(final String fieldName)
+		{
+			Integer column = fields.get(fieldName);
+			if(column == null)
+				throw new IllegalArgumentException("No such field: " + fieldName);
+			
+			final int index = column.intValue();
+			return new FieldHandle() {
+				public String getName() {
+					return fieldName;
+				}
+				
+				public Object get(int recordNumber) {
+					return descriptors.get(recordNumber-1)[index];
+				}
+			};
+		}
+	}
+
+	public static class Options {
+		static final long DEFAULT_CACHE_BYTES = 64L << 20;
+		
+		boolean mapShapes = false;
+		RecordCache cache = null;
+		int prepareThreshold = 0;
+		boolean persistSpatialIndex = false;
+		boolean mapAttributes = false;
+		ResultCache resultCache = null;
+		int resultCacheLayer = 0;
+		int gridResolution = 0;
+		long gridBytes = 0;
+		QueryMetrics metrics = null;
+		String[] indexedAttributes = new String[0];
+		
+		/**
+		 * Maps the .shp file into memory and decodes records straight from the
+		 * mapping instead of seeking a shared RandomAccessFile. Mapped reads take
+		 * no locks, so lookups scale with the number of querying threads.
+		 */
+		public Options mapShapes(boolean mapShapes) {
+			this.mapShapes = mapShapes;
+			return this;
+		}
+		
+		/**
+		 * Cache for decoded records. Defaults to a SegmentedLruCache holding up
+		 * to 64MB of geometry; SegmentedLruCache.pinAll() keeps every record.
+		 */
+		public Options cache(RecordCache cache) {
+			this.cache = cache;
+			return this;
+		}
+		
+		/**
+		 * Polygons with at least this many vertices get an edge index built the
+		 * first time they are tested against a point. The index lives with the
+		 * cached record and is charged to the cache by weighers that count
+		 * bytes. Zero, the default, leaves every polygon unprepared.
+		 */
+		public Options preparePolygons(int minVertices) {
+			this.prepareThreshold = minVertices;
+			return this;
+		}
+		
+		/**
+		 * When a shapefile has no .qix, an R-tree is built from the record
+		 * bounds instead. With this set that tree is also written out as
+		 * &lt;base&gt;.qix so later loads can read it.
+		 */
+		public Options persistSpatialIndex(boolean persistSpatialIndex) {
+			this.persistSpatialIndex = persistSpatialIndex;
+			return this;
+		}
+		
+		/**
+		 * Maps the .dbf and decodes attribute values as they are asked for
+		 * rather than reading every row into memory while loading.
+		 */
+		public Options mapAttributes(boolean mapAttributes) {
+			this.mapAttributes = mapAttributes;
+			return this;
+		}
+		
+		/**
+		 * Answers repeated point lookups from a cache of earlier results keyed
+		 * on quantized coordinates. Off by default since a hit returns whatever
+		 * matched the first point looked up in the same grid cell.
+		 */
+		public Options resultCache(ResultCache resultCache) {
+			return resultCache(resultCache, 0);
+		}
+		
+		/**
+		 * Shares a result cache with other layers, each loaded with its own
+		 * layer number so their entries stay apart.
+		 */
+		public Options resultCache(ResultCache resultCache, int layer) {
+			this.resultCache = resultCache;
+			this.resultCacheLayer = layer;
+			return this;
+		}
+		
+		/**
+		 * Classifies a grid of up to resolution by resolution cells over the
+		 * layer while loading, so points in cells wholly inside one record or
+		 * outside all of them are answered without any containment test. The
+		 * resolution is halved until the grid fits in maxBytes. Best suited to
+		 * layers of non-overlapping polygons; loading reads every record once.
+		 */
+		public Options classificationGrid(int resolution, long maxBytes) {
+			this.gridResolution = resolution;
+			this.gridBytes = maxBytes;
+			return this;
+		}
+		
+		/**
+		 * Records phase latencies and work counts for every point lookup.
+		 * Lookups on a ShapeFile without metrics skip all of the bookkeeping.
+		 */
+		public Options metrics(QueryMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+		
+		/**
+		 * Builds an AttributeIndex on each of the fields while loading. More
+		 * can be added later with ShapeFile.indexAttribute.
+		 */
+		public Options indexAttributes(String... fields) {
+			this.indexedAttributes = fields.clone();
+			return this;
+		}
+		
+		RecordCache getCache() {
+			return cache != null ? cache : new SegmentedLruCache(DEFAULT_CACHE_BYTES, RecordCache.BYTES);
+		}
 	}
 
+	static final int RTREE_NODE_CAPACITY = 16;
+	static final int[] NO_RECORDS = new int[0];
+	
+	// Candidates of the lookup running on each thread, so an untraced lookup
+	// allocates nothing but its answer. Grown as needed and kept.
+	private static final ThreadLocal<int[]> CANDIDATES = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[64];
+		}
+	};
+
 	private final RandomAccessFile shapeFile;
-	private final Index index;
-	private final Descriptors shapeInfo;
+	private final ByteBuffer mappedShapes;
+	final Index index;
+	private final AttributeTable shapeInfo;
 	private final ShapeHeader header;
-	private final SpatialIndex spatialIndex;
+	final PackedSpatialIndex spatialIndex;
+	private final int prepareThreshold;
+	private final ResultCache resultCache;
+	private final int resultCacheLayer;
+	private final ClassificationGrid grid;
+	private final QueryMetrics metrics;
+	private final Map<String,AttributeIndex> attributeIndexes = new ConcurrentHashMap<String,AttributeIndex>();
 	
 	public ShapeFile(String filePath) throws FileNotFoundException, IOException, JDBFException, ShapeException, SpatialIndexException {
+		this(filePath, new Options());
+	}
+	
+	public ShapeFile(String filePath, Options options) throws FileNotFoundException, IOException, JDBFException, ShapeException, SpatialIndexException {
 		shapeFile = new RandomAccessFile(filePath + ".shp", "r");
 		header = new ShapeHeader(shapeFile);
-		index = new Index(filePath + ".shx");
-		shapeInfo = new Descriptors(filePath + ".dbf");
-		spatialIndex = new SpatialIndex(filePath);
+		if(options.mapShapes) {
+			FileChannel channel = shapeFile.getChannel();
+			mappedShapes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		else
+			mappedShapes = null;
+		index = new Index(filePath + ".shx", options.getCache());
+		shapeInfo = options.mapAttributes ? new MappedDescriptors(filePath + ".dbf") : new Descriptors(filePath + ".dbf");
+		if(new File(filePath + ".qix").exists())
+			spatialIndex = PackedSpatialIndex.load(filePath);
+		else {
+			PackedSpatialIndex tree = buildSpatialIndex();
+			if(options.persistSpatialIndex)
+				tree.write(filePath, getRecordCount());
+			spatialIndex = tree;
+		}
+		prepareThreshold = options.prepareThreshold;
+		resultCache = options.resultCache;
+		resultCacheLayer = options.resultCacheLayer;
+		metrics = options.metrics;
+		grid = options.gridResolution > 0 ? ClassificationGrid.build(this, options.gridResolution, options.gridBytes) : null;
+		for(String field: options.indexedAttributes)
+			indexAttribute(field);
+	}
+	
+	/**
+	 * Serves a shapefile out of sections of a mapped snapshot. See Snapshot.
+	 */
+	ShapeFile(ShapeHeader header, PackedRecords records, AttributeTable shapeInfo,
+				PackedSpatialIndex spatialIndex, Options options) throws IOException, ShapeException {
+		this.shapeFile = null;
+		this.header = header;
+		// Sends reads down the mapped path; the packed records ignore the buffer.
+		this.mappedShapes = ByteBuffer.allocate(0);
+		this.index = records;
+		this.shapeInfo = shapeInfo;
+		this.spatialIndex = spatialIndex;
+		prepareThreshold = options.prepareThreshold;
+		resultCache = options.resultCache;
+		resultCacheLayer = options.resultCacheLayer;
+		metrics = options.metrics;
+		grid = options.gridResolution > 0 ? ClassificationGrid.build(this, options.gridResolution, options.gridBytes) : null;
+		for(String field: options.indexedAttributes)
+			indexAttribute(field);
+	}
+	
+	private PackedSpatialIndex buildSpatialIndex() throws IOException {
+		return PackedSpatialIndex.bulkLoad(index.readRecordBounds(scanBuffer()), getBounds(), RTREE_NODE_CAPACITY);
+	}
+	
+	/**
+	 * The .shp mapping, or a fresh one for passes over the whole file when
+	 * records are normally read through the RandomAccessFile.
+	 */
+	ByteBuffer scanBuffer() throws IOException {
+		if(mappedShapes != null)
+			return mappedShapes;
+		FileChannel channel = shapeFile.getChannel();
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
 	}
 	
 	public int getRecordCount() {
-		return index.index.length;
+		return index.getRecordCount();
 	}
 	
 	public Record getRecord(int recordNumber) throws IOException, ShapeException {
-		return index.getRecord(shapeFile, recordNumber);
+		return getRecord(recordNumber, null);
+	}
+	
+	private Record getRecord(int recordNumber, QueryExplain trace) throws IOException, ShapeException {
+		if(mappedShapes != null)
+			return index.getRecord(mappedShapes, recordNumber, trace);
+		return index.getRecord(shapeFile, recordNumber, trace);
+	}
+	
+	Record readRecord(int recordNumber) throws IOException, ShapeException {
+		if(mappedShapes != null)
+			return index.readRecord(mappedShapes, recordNumber);
+		return index.readRecord(shapeFile, recordNumber);
+	}
+	
+	public RecordCache getRecordCache() {
+		return index.cache;
 	}
 	
 	public Object getInfo(int recordNumber, String field){
 		return shapeInfo.getShapeInfo(recordNumber, field);
 	}
 	
+	/**
+	 * Resolves an attribute field once for repeated getInfo or
+	 * getInfoAtPoint calls.
+	 */
+	public FieldHandle getField(String field) {
+		return shapeInfo.getField(field);
+	}
+	
 	public List<Record> getRecordsAtPoint(Record.XY xy) throws IOException, ShapeException {
-		List<Integer> ids = spatialIndex.getRecordsAtPoint(xy.getX(), xy.getY());
-		List<Record> records = new ArrayList<Record>();
-		
-		for(Integer id: ids) {
-			Record record = getRecord(id);
-			if(record.shape.inBoundry(xy))
-				records.add(record);
-		}
+		QueryExplain trace = metrics == null ? null : new QueryExplain(xy.getX(), xy.getY(), false);
+		int[] matches = recordNumbersAtPoint(xy.getX(), xy.getY(), trace);
+		List<Record> records = new ArrayList<Record>(matches.length);
+		for(int id: matches)
+			records.add(getRecord(id));
 
+		if(trace != null)
+			metrics.record(trace.finish());
 		return records;
 	}
 	
+	/**
+	 * Numbers of the records containing the point, answered from the result
+	 * cache when there is one. The returned array may be shared with the cache
+	 * and must not be modified.
+	 */
+	int[] recordNumbersAtPoint(double X, double Y) throws IOException, ShapeException {
+		return recordNumbersAtPoint(X, Y, null);
+	}
+	
+	/**
+	 * With a trace, also times each phase of the lookup and counts the work
+	 * done into it. Every check for the trace is a null test, so lookups on
+	 * a layer without metrics pay next to nothing for them.
+	 */
+	int[] recordNumbersAtPoint(double X, double Y, QueryExplain trace) throws IOException, ShapeException {
+		if(resultCache == null)
+			return matchRecordsAtPoint(X, Y, null, trace);
+		
+		int[] matches = resultCache.getShared(resultCacheLayer, X, Y);
+		if(matches != null) {
+			if(trace != null)
+				trace.resultCacheHit(matches);
+			return matches;
+		}
+		matches = matchRecordsAtPoint(X, Y, null, trace);
+		resultCache.putShared(resultCacheLayer, X, Y, matches);
+		return matches;
+	}
+	
+	int[] matchRecordsAtPoint(double X, double Y) throws IOException, ShapeException {
+		return matchRecordsAtPoint(X, Y, null, null);
+	}
+	
+	int[] matchRecordsAtPoint(double X, double Y, IntPredicate filter) throws IOException, ShapeException {
+		return matchRecordsAtPoint(X, Y, filter, null);
+	}
+	
+	/**
+	 * Matches at the point among the records the filter accepts, or all of
+	 * them for a null filter. The filter runs before a candidate is read.
+	 * The result cache is not consulted.
+	 */
+	int[] matchRecordsAtPoint(double X, double Y, IntPredicate filter, QueryExplain trace) throws IOException, ShapeException {
+		long start = trace == null ? 0 : System.nanoTime();
+		int[] ids;
+		int candidates;
+		boolean shared = false;
+		if(grid != null) {
+			int cell = grid.classify(X, Y);
+			if(trace != null)
+				trace.gridCell(cell);
+			if(cell == ClassificationGrid.EMPTY || cell == ClassificationGrid.OUTSIDE || cell > 0) {
+				int[] matches = cell > 0 && (filter == null || filter.test(cell)) ? new int[]{cell} : NO_RECORDS;
+				if(trace != null) {
+					trace.phase(QueryMetrics.INDEX, System.nanoTime() - start);
+					trace.matches = matches;
+				}
+				return matches;
+			}
+			ids = grid.candidates(cell);
+			candidates = ids.length;
+		}
+		else if(trace == null) {
+			ids = CANDIDATES.get();
+			candidates = spatialIndex.getRecordsAtPoint(X, Y, ids);
+			if(candidates > ids.length) {
+				ids = new int[Integer.highestOneBit(candidates) << 1];
+				CANDIDATES.set(ids);
+				spatialIndex.getRecordsAtPoint(X, Y, ids);
+			}
+			shared = true;
+		}
+		else {
+			ids = spatialIndex.traceRecordsAtPoint(X, Y, trace);
+			candidates = ids.length;
+		}
+		
+		int count = 0;
+		if(trace == null) {
+			for(int i = 0; i < candidates; i++) {
+				int id = ids[i];
+				if((filter == null || filter.test(id)) && contains(getRecord(id), X, Y, null))
+					ids[count++] = id;
+			}
+		}
+		else {
+			trace.phase(QueryMetrics.INDEX, System.nanoTime() - start);
+			trace.candidateCount = candidates;
+			for(int i = 0; i < candidates; i++) {
+				int id = ids[i];
+				if(filter != null && !filter.test(id))
+					continue;
+				long fetchStart = System.nanoTime();
+				Record record = getRecord(id, trace);
+				long fetched = System.nanoTime();
+				boolean matched = contains(record, X, Y, trace);
+				long tested = System.nanoTime();
+				
+				trace.phase(QueryMetrics.FETCH, fetched - fetchStart);
+				trace.phase(QueryMetrics.CONTAINS, tested - fetched);
+				trace.candidate(id, record, matched, fetched - fetchStart, tested - fetched);
+				if(matched)
+					ids[count++] = id;
+			}
+		}
+		
+		int[] matches = count == 0 ? NO_RECORDS : count == ids.length && !shared ? ids : Arrays.copyOf(ids, count);
+		if(trace != null)
+			trace.matches = matches;
+		return matches;
+	}
+	
+	/**
+	 * Tests the record's bounding box from its header first, so candidates
+	 * the index returned only because they share a node with the point are
+	 * rejected without decoding their geometry. Vertices looked at are
+	 * counted into the trace, if there is one.
+	 */
+	private boolean contains(Record record, double X, double Y, QueryExplain trace) {
+		if(!record.boundsContain(X, Y))
+			return false;
+		Shape shape = record.getShape();
+		if(shape instanceof Polygon) {
+			Polygon polygon = (Polygon)shape;
+			if(prepareThreshold > 0 && !polygon.isPrepared() && polygon.getVertexCount() >= prepareThreshold) {
+				polygon.prepare();
+				index.cache.reweigh(record.getRecordNumber());
+			}
+			return polygon.contains(X, Y, trace);
+		}
+		if(trace != null)
+			trace.examined += record.getVertexCount();
+		return shape.inBoundry(new Record.Vect(X, Y));
+	}
+	
+	/**
+	 * Up to k records nearest the point, closest first, leaving out any
+	 * further than maxDistance. Records containing the point come first at
+	 * distance zero, so this also answers points that fall in no polygon.
+	 * Pass Double.POSITIVE_INFINITY to search the whole layer; a negative or
+	 * NaN maxDistance is rejected with IllegalArgumentException.
+	 */
+	public List<Record> getNearestRecords(Record.XY xy, int k, double maxDistance) throws IOException, ShapeException {
+		return new NearestSearch(this, spatialIndex, xy.getX(), xy.getY(), maxDistance).run(k);
+	}
+	
+	/**
+	 * Records whose bounding boxes intersect the envelope, in index order.
+	 * The stream is lazy: the index is walked and records decoded only as
+	 * the stream is consumed. Decoding failures surface as
+	 * UncheckedIOException or Record.UncheckedShapeException.
+	 */
+	public Stream<Record> queryEnvelope(double minX, double minY, double maxX, double maxY) {
+		EnvelopeQuery query = new EnvelopeQuery(this, spatialIndex, minX, minY, maxX, maxY);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(query,
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+	}
+	
+	/**
+	 * Every record in file order, read sequentially from a mapping of the
+	 * .shp and bypassing the record cache, so a full scan neither pays for
+	 * cache bookkeeping nor flushes the records lookups depend on. Splits
+	 * into ranges of about equal size in bytes for parallel streams.
+	 */
+	public Spliterator<Record> spliterator() throws IOException {
+		return new RecordSpliterator(index, scanBuffer(), 1, getRecordCount() + 1);
+	}
+	
+	public Stream<Record> stream() throws IOException {
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	public Stream<Record> parallelStream() throws IOException {
+		return StreamSupport.stream(spliterator(), true);
+	}
+	
 	public List<Object> getInfoAtPoint(Record.XY xy, String field) throws IOException, ShapeException {
-		List<Record> records = getRecordsAtPoint(xy);
-		List<Object> infos = new ArrayList<Object>();
-		for(Record record: records)
-			infos.add(getInfo(record.recordNumber, field));
+		return getInfoAtPoint(xy, getField(field));
+	}
+	
+	public List<Object> getInfoAtPoint(Record.XY xy, FieldHandle field) throws IOException, ShapeException {
+		if(metrics != null) {
+			QueryExplain trace = new QueryExplain(xy.getX(), xy.getY(), false);
+			List<Object> infos = traceInfoAtPoint(trace, field);
+			metrics.record(trace.finish());
+			return infos;
+		}
+		
+		int[] matches = recordNumbersAtPoint(xy.getX(), xy.getY());
+		List<Object> infos = new ArrayList<Object>(matches.length);
+		for(int id: matches)
+			infos.add(field.get(id));
 		
 		return infos;
 	}
 	
+	private List<Object> traceInfoAtPoint(QueryExplain trace, FieldHandle field) throws IOException, ShapeException {
+		int[] matches = recordNumbersAtPoint(trace.x, trace.y, trace);
+		long start = System.nanoTime();
+		List<Object> infos = new ArrayList<Object>(matches.length);
+		for(int id: matches)
+			infos.add(field.get(id));
+		trace.phase(QueryMetrics.ATTRIBUTES, System.nanoTime() - start);
+		return infos;
+	}
+	
+	/**
+	 * Runs a point lookup and reports what it did, down to each candidate
+	 * record, for working out why a lookup is slow. Explained lookups are
+	 * not added to the layer's metrics.
+	 */
+	public QueryExplain explain(Record.XY xy) throws IOException, ShapeException {
+		QueryExplain explain = new QueryExplain(xy.getX(), xy.getY(), true);
+		recordNumbersAtPoint(explain.x, explain.y, explain);
+		return explain.finish();
+	}
+	
+	/**
+	 * Explains a lookup including the attribute fetch for the given field.
+	 */
+	public QueryExplain explain(Record.XY xy, FieldHandle field) throws IOException, ShapeException {
+		QueryExplain explain = new QueryExplain(xy.getX(), xy.getY(), true);
+		explain.values = traceInfoAtPoint(explain, field);
+		return explain.finish();
+	}
+	
+	/**
+	 * Indexes the field's values, or returns the index already built on it.
+	 */
+	public AttributeIndex indexAttribute(String field) {
+		AttributeIndex index = attributeIndexes.get(field);
+		if(index == null) {
+			index = new AttributeIndex(getField(field), getRecordCount());
+			attributeIndexes.put(field, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * The index on the field, or null if it hasn't been indexed.
+	 */
+	public AttributeIndex getAttributeIndex(String field) {
+		return attributeIndexes.get(field);
+	}
+	
+	/**
+	 * Numbers of the records whose field holds the value, ascending. Uses
+	 * the field's AttributeIndex if there is one and otherwise scans the
+	 * field's column; no geometry is read either way.
+	 */
+	public int[] findRecords(String field, Object value) {
+		AttributeIndex index = attributeIndexes.get(field);
+		if(index != null)
+			return index.findRecords(value).clone();
+		
+		FieldHandle handle = getField(field);
+		Object key = AttributeIndex.key(value);
+		int[] found = new int[16];
+		int count = 0;
+		for(int recordNumber = 1; recordNumber <= getRecordCount(); recordNumber++)
+			if(equal(key, AttributeIndex.key(handle.get(recordNumber)))) {
+				if(count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = recordNumber;
+			}
+		return Arrays.copyOf(found, count);
+	}
+	
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/**
+	 * Accepts the records whose field holds the value, or returns null when
+	 * no record can match.
+	 */
+	private IntPredicate attributeFilter(String field, Object value) {
+		AttributeIndex index = attributeIndexes.get(field);
+		if(index != null) {
+			final int[] found = index.findRecords(value);
+			if(found.length == 0)
+				return null;
+			return new IntPredicate() {
+				public boolean test(int recordNumber) {
+					return Arrays.binarySearch(found, recordNumber) >= 0;
+				}
+			};
+		}
+		final FieldHandle handle = getField(field);
+		final Object key = AttributeIndex.key(value);
+		return new IntPredicate() {
+			public boolean test(int recordNumber) {
+				return equal(key, AttributeIndex.key(handle.get(recordNumber)));
+			}
+		};
+	}
+	
+	/**
+	 * Records containing the point whose field holds the value. Candidates
+	 * are filtered on the attribute first, so those that don't match are
+	 * never read. The result cache is not consulted.
+	 */
+	public List<Record> getRecordsAtPoint(Record.XY xy, String field, Object value) throws IOException, ShapeException {
+		IntPredicate filter = attributeFilter(field, value);
+		QueryExplain trace = metrics == null || filter == null ? null : new QueryExplain(xy.getX(), xy.getY(), false);
+		int[] matches = filter == null ? NO_RECORDS : matchRecordsAtPoint(xy.getX(), xy.getY(), filter, trace);
+		List<Record> records = new ArrayList<Record>(matches.length);
+		for(int id: matches)
+			records.add(getRecord(id));
+		
+		if(trace != null)
+			metrics.record(trace.finish());
+		return records;
+	}
+	
+	/**
+	 * Values of infoField for the records containing the point whose
+	 * filterField holds filterValue.
+	 */
+	public List<Object> getInfoAtPoint(Record.XY xy, FieldHandle infoField, String filterField, Object filterValue) throws IOException, ShapeException {
+		IntPredicate filter = attributeFilter(filterField, filterValue);
+		QueryExplain trace = metrics == null || filter == null ? null : new QueryExplain(xy.getX(), xy.getY(), false);
+		int[] matches = filter == null ? NO_RECORDS : matchRecordsAtPoint(xy.getX(), xy.getY(), filter, trace);
+		long start = trace == null ? 0 : System.nanoTime();
+		List<Object> infos = new ArrayList<Object>(matches.length);
+		for(int id: matches)
+			infos.add(infoField.get(id));
+		
+		if(trace != null) {
+			trace.phase(QueryMetrics.ATTRIBUTES, System.nanoTime() - start);
+			metrics.record(trace.finish());
+		}
+		return infos;
+	}
+	
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * Metrics given in the loading options, or null.
+	 */
+	public QueryMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Looks up a batch of points, returning each point's info at the same
+	 * position as its coordinates. The batch is spread over the common
+	 * fork-join pool.
+	 */
+	public List<List<Object>> getInfoAtPoints(double[] xs, double[] ys, String field) throws IOException, ShapeException {
+		return getInfoAtPoints(xs, ys, getField(field), ForkJoinPool.commonPool());
+	}
+	
+	public List<List<Object>> getInfoAtPoints(double[] xs, double[] ys, final FieldHandle field, ForkJoinPool pool) throws IOException, ShapeException {
+		return new BatchLookup<List<Object>>(xs, ys, getBounds(), pool.getParallelism()) {
+			List<Object> lookup(double x, double y) throws IOException, ShapeException {
+				return getInfoAtPoint(new Record.Vect(x, y), field);
+			}
+		}.run(pool);
+	}
+	
+	/**
+	 * Closes the .shp file and empties the record cache. Mappings are not
+	 * unmapped explicitly; they go once no record or buffer refers to them.
+	 */
+	public void close() throws IOException {
+		index.cache.clear();
+		if(shapeFile != null)
+			shapeFile.close();
+	}
+	
 	public int getFileSize() {
 		return header.fileSize;
 	}
@@ -0,0 +1,342 @@
+package net.theatticlight.Shapely;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.theatticlight.Shapely.Record.Measured;
+import net.theatticlight.Shapely.Record.MultiPatch;
+import net.theatticlight.Shapely.Record.Point;
+import net.theatticlight.Shapely.Record.Shape;
+import net.theatticlight.Shapely.Record.ShapeException;
+import net.theatticlight.Shapely.Record.ShapeHeader;
+import net.theatticlight.Shapely.Record.ShapeType;
+import net.theatticlight.Shapely.Record.VertexShape;
+import net.theatticlight.Shapely.SpatialIndex.SpatialIndexException;
+
+import com.hexiong.jdbf.JDBFException;
+
+/**
+ * Single file bundle of everything a ShapeFile needs, for shipping a layer
+ * as one file that opens without parsing anything. Compiling a shapefile
+ * decodes every record once and lays the geometry out as flat arrays: per
+ * record shape types, bounding boxes and start offsets, then the packed
+ * X,Y vertices, part offsets and part types, and the raw Z and M values of
+ * all records. Attributes are stored as typed columns (see
+ * ColumnDescriptors) and the spatial index as its packed arrays. Opening a
+ * snapshot maps each section and serves records and attributes straight
+ * from the mappings, so load time doesn't grow with the number of records.
+ *
+ * Layout, little endian: the magic "SHPLYSNP", a format version, a section
+ * count, then (id, offset, length) for each section. Sections start on
+ * eight byte boundaries. The first holds the 100 byte .shp header.
+ */
+public class Snapshot {
+	static final byte[] MAGIC = "SHPLYSNP".getBytes();
+	static final int VERSION = 2;
+
+	static final int SHAPE_HEADER = 1;
+	static final int SHAPE_TYPES = 2;
+	static final int RECORD_BOUNDS = 3;
+	static final int VERTEX_STARTS = 4;
+	static final int PART_STARTS = 5;
+	static final int MEASURE_STARTS = 6;
+	static final int COORDINATES = 7;
+	static final int PARTS = 8;
+	static final int PART_TYPES = 9;
+	static final int MEASURES = 10;
+	static final int SPATIAL_INDEX = 11;
+	static final int ATTRIBUTES = 12;
+	static final int SECTIONS = 12;
+
+	static final int HEADER_SIZE = 16 + SECTIONS*20;
+
+	public static class SnapshotException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		SnapshotException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Loads the shapefile at filePath and writes its snapshot. A spatial
+	 * index is built if the shapefile has no .qix.
+	 */
+	public static void compile(String filePath, String snapshotPath) throws FileNotFoundException, IOException, JDBFException, ShapeException, SpatialIndexException {
+		ShapeFile shapeFile = new ShapeFile(filePath, new ShapeFile.Options().mapShapes(true).mapAttributes(true));
+		try {
+			FileChannel out = new FileOutputStream(snapshotPath).getChannel();
+			try {
+				write(shapeFile, filePath, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	private static void write(ShapeFile shapeFile, String filePath, FileChannel out) throws IOException, JDBFException, ShapeException {
+		ByteBuffer[] sections = new ByteBuffer[SECTIONS + 1];
+		sections[SHAPE_HEADER] = header(filePath + ".shp");
+		pack(shapeFile, sections);
+		sections[SPATIAL_INDEX] = encode(shapeFile.spatialIndex);
+		sections[ATTRIBUTES] = ColumnDescriptors.encode(new MappedDescriptors(filePath + ".dbf"));
+
+		ByteBuffer header = allocate(HEADER_SIZE);
+		header.put(MAGIC).putInt(VERSION).putInt(SECTIONS);
+		long position = HEADER_SIZE;
+		for(int id = 1; id <= SECTIONS; id++) {
+			position = align(position);
+			long length = write(out, sections[id], position);
+			header.putInt(id).putLong(position).putLong(length);
+			position += length;
+		}
+		header.flip();
+		write(out, header, 0);
+	}
+
+	private static ByteBuffer header(String shpPath) throws IOException {
+		RandomAccessFile shp = new RandomAccessFile(shpPath, "r");
+		try {
+			byte[] header = new byte[100];
+			shp.readFully(header);
+			return ByteBuffer.wrap(header);
+		} finally {
+			shp.close();
+		}
+	}
+
+	/**
+	 * Decodes every record and fills in the record and geometry sections.
+	 * Null shapes are kept, with type 0, NaN bounds and nothing else, so
+	 * reading one fails just as it does from the shapefile.
+	 */
+	private static void pack(ShapeFile shapeFile, ByteBuffer[] sections) throws IOException, ShapeException {
+		int count = shapeFile.getRecordCount();
+		int[] shapeTypes = new int[count];
+		double[] bounds = new double[count*4];
+		int[] vertexStarts = new int[count + 1];
+		int[] partStarts = new int[count + 1];
+		int[] measureStarts = new int[count + 1];
+		double[] coordinates = new double[64];
+		int[] parts = new int[16];
+		int[] partTypes = new int[16];
+		byte[] measures = new byte[0];
+
+		double[] recordBounds = shapeFile.index.readRecordBounds(shapeFile.scanBuffer());
+		int vertices = 0, partCount = 0, measureBytes = 0;
+		for(int i = 0; i < count; i++) {
+			vertexStarts[i] = vertices;
+			partStarts[i] = partCount;
+			measureStarts[i] = measureBytes;
+			if(Double.isNaN(recordBounds[i*4])) {
+				bounds[i*4] = bounds[i*4+1] = bounds[i*4+2] = bounds[i*4+3] = Double.NaN;
+				continue;
+			}
+
+			Record record = shapeFile.readRecord(i + 1);
+			Shape shape = record.getShape();
+			shapeTypes[i] = typeCode(record.getShapeType());
+			bounds[i*4] = record.getMinX();
+			bounds[i*4+1] = record.getMinY();
+			bounds[i*4+2] = record.getMaxX();
+			bounds[i*4+3] = record.getMaxY();
+
+			double[] coords;
+			if(shape instanceof VertexShape) {
+				VertexShape vertexShape = (VertexShape)shape;
+				coords = vertexShape.coords;
+				if(partCount + vertexShape.parts.length > parts.length) {
+					parts = Arrays.copyOf(parts, Math.max(parts.length*2, partCount + vertexShape.parts.length));
+					partTypes = Arrays.copyOf(partTypes, parts.length);
+				}
+				System.arraycopy(vertexShape.parts, 0, parts, partCount, vertexShape.parts.length);
+				if(shape instanceof MultiPatch)
+					System.arraycopy(((MultiPatch)shape).partTypes, 0, partTypes, partCount, vertexShape.parts.length);
+				partCount += vertexShape.parts.length;
+			}
+			else {
+				Point point = (Point)shape;
+				coords = new double[]{point.X, point.Y};
+			}
+			if(vertices*2 + coords.length > coordinates.length)
+				coordinates = Arrays.copyOf(coordinates, Math.max(coordinates.length*2, vertices*2 + coords.length));
+			System.arraycopy(coords, 0, coordinates, vertices*2, coords.length);
+			vertices += coords.length/2;
+
+			if(shape instanceof Measured) {
+				ByteBuffer values = ((Measured)shape).getMeasures().values.duplicate();
+				values.clear();
+				if(measureBytes + values.remaining() > measures.length)
+					measures = Arrays.copyOf(measures, Math.max(measures.length*2, measureBytes + values.remaining()));
+				int length = values.remaining();
+				values.get(measures, measureBytes, length);
+				measureBytes += length;
+			}
+		}
+		vertexStarts[count] = vertices;
+		partStarts[count] = partCount;
+		measureStarts[count] = measureBytes;
+
+		sections[SHAPE_TYPES] = ints(shapeTypes, count);
+		sections[RECORD_BOUNDS] = doubles(bounds, bounds.length);
+		sections[VERTEX_STARTS] = ints(vertexStarts, count + 1);
+		sections[PART_STARTS] = ints(partStarts, count + 1);
+		sections[MEASURE_STARTS] = ints(measureStarts, count + 1);
+		sections[COORDINATES] = doubles(coordinates, vertices*2);
+		sections[PARTS] = ints(parts, partCount);
+		sections[PART_TYPES] = ints(partTypes, partCount);
+		sections[MEASURES] = ByteBuffer.wrap(measures, 0, measureBytes);
+	}
+
+	/**
+	 * The shape type number used in .shp files.
+	 */
+	static int typeCode(ShapeType shapeType) {
+		switch(shapeType) {
+		case POINT: return 1;
+		case POLYLINE: return 3;
+		case POLYGON: return 5;
+		case MULTIPOINT: return 8;
+		case POINTZ: return 11;
+		case POLYLINEZ: return 13;
+		case POLYGONZ: return 15;
+		case MULTIPOINTZ: return 18;
+		case POINTM: return 21;
+		case POLYLINEM: return 23;
+		case POLYGONM: return 25;
+		case MULTIPOINTM: return 28;
+		case MULTIPATCH: return 31;
+		default: return 0;
+		}
+	}
+
+	private static ByteBuffer ints(int[] values, int count) {
+		ByteBuffer bb = allocate(count*4);
+		bb.asIntBuffer().put(values, 0, count);
+		return bb;
+	}
+
+	private static ByteBuffer doubles(double[] values, int count) {
+		ByteBuffer bb = allocate(count*8);
+		bb.asDoubleBuffer().put(values, 0, count);
+		return bb;
+	}
+
+	public static ShapeFile open(String snapshotPath) throws IOException, ShapeException, JDBFException, SnapshotException {
+		return open(snapshotPath, new ShapeFile.Options());
+	}
+
+	/**
+	 * Maps a snapshot and serves it as a ShapeFile. Loading options that
+	 * concern the source files are ignored; caches, prepared polygons and
+	 * the classification grid apply as usual.
+	 */
+	public static ShapeFile open(String snapshotPath, ShapeFile.Options options) throws IOException, ShapeException, JDBFException, SnapshotException {
+		RandomAccessFile file = new RandomAccessFile(snapshotPath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = allocate(HEADER_SIZE);
+			while(header.hasRemaining() && channel.read(header, header.position()) > 0);
+			header.flip();
+
+			byte[] magic = new byte[MAGIC.length];
+			if(header.remaining() < HEADER_SIZE)
+				throw new SnapshotException("Truncated snapshot");
+			header.get(magic);
+			if(!new String(magic).equals(new String(MAGIC)))
+				throw new SnapshotException("Not a snapshot file");
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new SnapshotException("Unsupported snapshot version: " + version);
+
+			int sections = header.getInt();
+			ByteBuffer[] mapped = new ByteBuffer[SECTIONS + 1];
+			for(int i = 0; i < sections; i++) {
+				int id = header.getInt();
+				long offset = header.getLong();
+				long length = header.getLong();
+				if(id >= 1 && id <= SECTIONS)
+					mapped[id] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			for(int id = 1; id <= SECTIONS; id++)
+				if(mapped[id] == null)
+					throw new SnapshotException("Snapshot is missing section " + id);
+
+			return new ShapeFile(new ShapeHeader(mapped[SHAPE_HEADER]), new PackedRecords(mapped, options.getCache()),
+								new ColumnDescriptors(mapped[ATTRIBUTES]), decode(mapped[SPATIAL_INDEX]), options);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Node and record counts, then node bounds, subtree ends, record starts
+	 * and record IDs. The bounds come first so the doubles stay aligned.
+	 */
+	static ByteBuffer encode(PackedSpatialIndex index) {
+		ByteBuffer bb = allocate(8 + index.bounds.length*8 + (index.subtreeEnd.length + index.recordStart.length + index.recordIDs.length)*4);
+		bb.putInt(index.nodeCount).putInt(index.recordIDs.length);
+		bb.asDoubleBuffer().put(index.bounds);
+		bb.position(bb.position() + index.bounds.length*8);
+		bb.asIntBuffer().put(index.subtreeEnd).put(index.recordStart).put(index.recordIDs);
+		bb.position(bb.limit());
+		bb.flip();
+		return bb;
+	}
+
+	static PackedSpatialIndex decode(ByteBuffer bb) {
+		int nodeCount = bb.getInt();
+		int recordCount = bb.getInt();
+		double[] bounds = new double[nodeCount*4];
+		int[] subtreeEnd = new int[nodeCount];
+		int[] recordStart = new int[nodeCount + 1];
+		int[] recordIDs = new int[recordCount];
+		bb.asDoubleBuffer().get(bounds);
+		bb.position(bb.position() + bounds.length*8);
+		bb.asIntBuffer().get(subtreeEnd).get(recordStart).get(recordIDs);
+		return new PackedSpatialIndex(bounds, subtreeEnd, recordStart, recordIDs);
+	}
+
+	private static ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	private static long write(FileChannel out, ByteBuffer bb, long position) throws IOException {
+		long written = 0;
+		while(bb.hasRemaining())
+			written += out.write(bb, position + written);
+		return written;
+	}
+
+	/**
+	 * Compiles a snapshot: Snapshot &lt;shapefile base path&gt; &lt;snapshot file&gt;
+	 */
+	public static void main(String[] args) {
+		if(args.length != 2) {
+			System.out.println("Usage: Snapshot <shapefile base path> <snapshot file>");
+			return;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			compile(args[0], args[1]);
+			System.out.println("Took " + (System.currentTimeMillis() - start) + " milisec to compile snapshot.");
+		}
+		catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			for(StackTraceElement element : e.getStackTrace())
+				System.out.println(element);
+		}
+	}
+}
@@ -1,13 +1,19 @@
 package net.theatticlight.Shapely;
 
-import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntConsumer;
 
-public class SpatialIndex {
+public class SpatialIndex implements SpatialLookup {
+	static final int NATIVE_ORDER = 0;
+	static final int LSB_ORDER = 1;
+	static final int MSB_ORDER = 2;
+	
 	final int maxDepth;
     final int totalCount;
     final TreeNode rootNode;
@@ -29,19 +35,19 @@ public class SpatialIndex {
     	final int subNodeCount;
     	final TreeNode[] subNodes;
     	
-    	TreeNode(DataInputStream file) throws IOException {
-    		int offset = file.readInt();
+    	TreeNode(ByteBuffer file) {
+    		int offset = file.getInt();
     		
-    		minX = file.readDouble();
-    		minY = file.readDouble();
-    		maxX = file.readDouble();
-    		maxY = file.readDouble();
-    		recordCount = file.readInt();
+    		minX = file.getDouble();
+    		minY = file.getDouble();
+    		maxX = file.getDouble();
+    		maxY = file.getDouble();
+    		recordCount = file.getInt();
     		recordIDs = new int[recordCount];
     		for (int i = 0; i < recordCount; i++)
-    			recordIDs[i] = file.readInt() + 1;
+    			recordIDs[i] = file.getInt() + 1;
 
-    		subNodeCount = file.readInt();
+    		subNodeCount = file.getInt();
     		subNodes = new TreeNode[subNodeCount];
     		for (int i = 0; i < subNodeCount; i++)
     			subNodes[i] = new TreeNode(file);
@@ -69,34 +75,94 @@ public class SpatialIndex {
     		
     		return records;
     	}
+    	
+    	int getRecordsAtPoint(double X, double Y, int[] buffer, int count) {
+    		if(!inBoundry(X,Y))
+    			return count;
+    		
+    		for(int rec: recordIDs) {
+    			if(count < buffer.length)
+    				buffer[count] = rec;
+    			count++;
+    		}
+    		
+    		for(TreeNode node: subNodes)
+    			count = node.getRecordsAtPoint(X, Y, buffer, count);
+    		
+    		return count;
+    	}
+    	
+    	void forEachRecordAtPoint(double X, double Y, IntConsumer consumer) {
+    		if(!inBoundry(X,Y))
+    			return;
+    		
+    		for(int rec: recordIDs)
+    			consumer.accept(rec);
+    		
+    		for(TreeNode node: subNodes)
+    			node.forEachRecordAtPoint(X, Y, consumer);
+    	}
     }
     
     SpatialIndex (String fileBaseName) throws IOException, SpatialIndexException {
-    	DataInputStream file = new DataInputStream(new FileInputStream(fileBaseName + ".qix"));
+    	ByteBuffer file = readIndexFile(fileBaseName);
+    	totalCount = file.getInt();
+    	maxDepth = file.getInt();
+
+    	rootNode = new TreeNode(file);
+    }
+    
+    /**
+     * Maps the whole .qix file and checks its header. The returned buffer uses
+     * the byte order the file declares and is positioned at the total count
+     * that follows the header.
+     */
+    static ByteBuffer readIndexFile(String fileBaseName) throws IOException, SpatialIndexException {
+    	FileInputStream in = new FileInputStream(fileBaseName + ".qix");
+    	ByteBuffer file;
+    	try {
+    		FileChannel channel = in.getChannel();
+    		file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    	} finally {
+    		in.close();
+    	}
     	
     	byte[] sig = new byte[3];
-    	file.read(sig);
-    	if(!new String(sig).equals("SQT")) {
-    		file.close();
+    	file.get(sig);
+    	if(!new String(sig).equals("SQT"))
     		throw new SpatialIndexException("Wrong file signature.");
-    	}
     	
-    	int endianness = (int)file.readByte();
+    	int endianness = (int)file.get();
     	
-    	if(!(file.readByte() == 1)) {
-    		file.close();
+    	if(!(file.get() == 1))
     		throw new SpatialIndexException("Wrong file version number");
-    	}
     	
-    	file.skip(3);
-    	totalCount = file.readInt();
-    	maxDepth = file.readInt();
-
-    	rootNode = new TreeNode(file);
-    	file.close();
+    	file.position(file.position() + 3);
+    	switch(endianness) {
+    	case NATIVE_ORDER:
+    		file.order(ByteOrder.nativeOrder());
+    		break;
+    	case LSB_ORDER:
+    		file.order(ByteOrder.LITTLE_ENDIAN);
+    		break;
+    	case MSB_ORDER:
+    		file.order(ByteOrder.BIG_ENDIAN);
+    		break;
+    	default:
+    		throw new SpatialIndexException("Unknown byte order: " + endianness);
+    	}
+    	return file;
     }
     
     public List<Integer> getRecordsAtPoint(double X, double Y) {
     	return rootNode.getRecordsAtPoint(X, Y);
     }
+    
+    public int getRecordsAtPoint(double X, double Y, int[] buffer) {
+    	return rootNode.getRecordsAtPoint(X, Y, buffer, 0);
+    }
+    
+    public void forEachRecordAtPoint(double X, double Y, IntConsumer consumer) {
+    	rootNode.forEachRecordAtPoint(X, Y, consumer);
+    }
 }
@@ -0,0 +1,23 @@
+package net.theatticlight.Shapely;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Finds the records whose indexed bounds might contain a point. Candidates
+ * still need an exact test against their shape.
+ */
+public interface SpatialLookup {
+
+	public List<Integer> getRecordsAtPoint(double X, double Y);
+
+	/**
+	 * Writes candidate record numbers into buffer and returns how many there
+	 * are. When that is more than buffer.length only the first
+	 * buffer.length were written and the call should be repeated with a
+	 * larger buffer.
+	 */
+	public int getRecordsAtPoint(double X, double Y, int[] buffer);
+
+	public void forEachRecordAtPoint(double X, double Y, IntConsumer consumer);
+}
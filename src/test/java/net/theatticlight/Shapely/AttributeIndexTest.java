@@ -0,0 +1,91 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class AttributeIndexTest extends TestCase {
+	static final int RECORDS = 200;
+
+	public void testKeys() {
+		assertEquals(Long.valueOf(3), AttributeIndex.key(Integer.valueOf(3)));
+		assertEquals(Long.valueOf(3), AttributeIndex.key(Short.valueOf((short)3)));
+		assertEquals(Long.valueOf(3), AttributeIndex.key(Byte.valueOf((byte)3)));
+		assertEquals(Long.valueOf(3), AttributeIndex.key(Double.valueOf(3.0)));
+		assertEquals(Long.valueOf(3), AttributeIndex.key(Float.valueOf(3f)));
+		assertEquals(Long.valueOf(0), AttributeIndex.key(Double.valueOf(-0.0)));
+		assertEquals(Double.valueOf(2.5), AttributeIndex.key(Float.valueOf(2.5f)));
+		assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), AttributeIndex.key(Double.POSITIVE_INFINITY));
+		assertEquals(Double.valueOf(0x1p63), AttributeIndex.key(Double.valueOf(0x1p63)));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), AttributeIndex.key(Long.valueOf(Long.MAX_VALUE)));
+		assertEquals("poly3", AttributeIndex.key("poly3"));
+		assertNull(AttributeIndex.key(null));
+	}
+
+	/**
+	 * Indexed, scanned, mapped and snapshot attribute tables all answer
+	 * alike.
+	 */
+	public void testEveryTableFindsTheSameRecords() throws Exception {
+		String base = new SyntheticShapeFile(RECORDS, 6, 2).writeTemporary();
+		File snapshot = new File(base + ".snap");
+		snapshot.deleteOnExit();
+		Snapshot.compile(base, snapshot.getPath());
+		String[] fields = {"NAME", "ID", "SHARE", "HOLE", "SURVEYED"};
+
+		assertFinds(new ShapeFile(base));
+		assertFinds(new ShapeFile(base, new ShapeFile.Options().indexAttributes(fields)));
+		assertFinds(new ShapeFile(base, new ShapeFile.Options().mapAttributes(true).indexAttributes(fields)));
+		assertFinds(Snapshot.open(snapshot.getPath()));
+	}
+
+	private void assertFinds(ShapeFile shapeFile) throws Exception {
+		try {
+			// Numbers by value, whatever their type.
+			for(Object id: new Object[]{Integer.valueOf(7), Long.valueOf(7), Double.valueOf(7.0), Float.valueOf(7f), Short.valueOf((short)7)})
+				assertRecords(shapeFile.findRecords("ID", id), 7);
+			assertRecords(shapeFile.findRecords("ID", Double.valueOf(7.5)));
+			assertRecords(shapeFile.findRecords("ID", "7"));
+
+			// SHARE holds the record number over the record count, so the last
+			// record's share is whole and matches integers too.
+			assertRecords(shapeFile.findRecords("SHARE", Double.valueOf(0.5)), RECORDS / 2);
+			assertRecords(shapeFile.findRecords("SHARE", Integer.valueOf(1)), RECORDS);
+			assertRecords(shapeFile.findRecords("SHARE", Long.valueOf(1)), RECORDS);
+			assertRecords(shapeFile.findRecords("SHARE", Float.valueOf(0.25f)), RECORDS / 4);
+
+			// NAME is padded to 20 characters in the file; the padding is not part of the key.
+			assertRecords(shapeFile.findRecords("NAME", "poly12"), 12);
+			assertRecords(shapeFile.findRecords("NAME", "poly12  "));
+			assertRecords(shapeFile.findRecords("NAME", "POLY12"));
+
+			int[] holes = shapeFile.findRecords("HOLE", Boolean.TRUE);
+			int[] solid = shapeFile.findRecords("HOLE", Boolean.FALSE);
+			assertEquals(RECORDS, holes.length + solid.length);
+			for(int recordNumber: holes)
+				assertEquals(0, (recordNumber - 1) % 3);
+			assertSorted(holes);
+			assertSorted(solid);
+
+			int[] unsurveyed = shapeFile.findRecords("SURVEYED", null);
+			assertEquals(RECORDS / 5, unsurveyed.length);
+			for(int recordNumber: unsurveyed)
+				assertNull(shapeFile.getInfo(recordNumber, "SURVEYED"));
+			Object date = shapeFile.getInfo(2, "SURVEYED");
+			assertNotNull(date);
+			assertTrue(Arrays.binarySearch(shapeFile.findRecords("SURVEYED", date), 2) >= 0);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	private static void assertRecords(int[] found, int... expected) {
+		assertEquals(Arrays.toString(expected), Arrays.toString(found));
+	}
+
+	private static void assertSorted(int[] values) {
+		for(int i = 1; i < values.length; i++)
+			assertTrue(values[i-1] < values[i]);
+	}
+}
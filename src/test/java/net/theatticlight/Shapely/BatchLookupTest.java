@@ -0,0 +1,40 @@
+package net.theatticlight.Shapely;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class BatchLookupTest extends TestCase {
+	static final double[] BOUNDS = {0, 0, 100, 100};
+
+	public void testQuadrantsFollowZCurve() {
+		// Top right, top left, bottom right, bottom left.
+		double[] xs = {90, 10, 90, 10};
+		double[] ys = {90, 90, 10, 10};
+		int[] order = BatchLookup.mortonOrder(xs, ys, BOUNDS);
+		assertEquals("[3, 2, 1, 0]", Arrays.toString(order));
+	}
+
+	public void testTopEdgeSortsLast() {
+		double[] xs = {0, 100, 0};
+		double[] ys = {100, 0, 0};
+		int[] order = BatchLookup.mortonOrder(xs, ys, BOUNDS);
+		assertEquals("[2, 1, 0]", Arrays.toString(order));
+	}
+
+	public void testEveryPointOnce() {
+		int n = 1000;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		for(int i = 0; i < n; i++) {
+			xs[i] = (i * 37) % 101;
+			ys[i] = (i * 53) % 103;
+		}
+		int[] order = BatchLookup.mortonOrder(xs, ys, BOUNDS);
+		boolean[] seen = new boolean[n];
+		for(int i: order) {
+			assertFalse(seen[i]);
+			seen[i] = true;
+		}
+	}
+}
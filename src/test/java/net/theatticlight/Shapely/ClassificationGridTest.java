@@ -0,0 +1,102 @@
+package net.theatticlight.Shapely;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ClassificationGridTest extends TestCase {
+
+	/**
+	 * Every point the grid answers on its own must get the answer an exact
+	 * test of every record gives, and every boundary cell must list all
+	 * the records that contain its points.
+	 */
+	public void testClassificationsMatchExactLookups() throws Exception {
+		SyntheticShapeFile synthetic = new SyntheticShapeFile(100, 24, 4);
+		ShapeFile shapeFile = new ShapeFile(synthetic.writeTemporary());
+		try {
+			ClassificationGrid grid = ClassificationGrid.build(shapeFile, 128, 1 << 20);
+			assertEquals(128, grid.resolution);
+
+			List<double[]> points = new ArrayList<double[]>();
+			double[] random = synthetic.samplePoints(20000, 8);
+			for(int i = 0; i < random.length; i += 2)
+				points.add(new double[]{random[i], random[i+1]});
+			// Points on the cell edges and on the polygons' vertices.
+			for(int c = 0; c <= grid.resolution; c++)
+				for(int r = 0; r <= grid.resolution; r += 7)
+					points.add(new double[]{grid.minX + c*grid.cellWidth, grid.minY + r*grid.cellHeight});
+			for(int recordNumber = 1; recordNumber <= shapeFile.getRecordCount(); recordNumber++) {
+				Record.Polygon polygon = (Record.Polygon)shapeFile.getRecord(recordNumber).getShape();
+				for(int v = 0; v < polygon.getPointCount(); v++)
+					points.add(new double[]{polygon.getX(v), polygon.getY(v)});
+			}
+
+			int interior = 0, empty = 0, boundary = 0;
+			for(double[] point: points) {
+				int[] exact = exactLookup(shapeFile, point[0], point[1]);
+				int classification = grid.classify(point[0], point[1]);
+				if(classification > 0) {
+					assertEquals(Arrays.toString(point), "[" + classification + "]", Arrays.toString(exact));
+					interior++;
+				}
+				else if(classification == ClassificationGrid.EMPTY || classification == ClassificationGrid.OUTSIDE) {
+					assertEquals(Arrays.toString(point), 0, exact.length);
+					empty++;
+				}
+				else {
+					int[] candidates = grid.candidates(classification);
+					for(int recordNumber: exact)
+						assertTrue(Arrays.toString(point), Arrays.binarySearch(sorted(candidates), recordNumber) >= 0);
+					boundary++;
+				}
+			}
+			assertTrue(interior > 0 && empty > 0 && boundary > 0);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testOutsideTheLayer() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(4, 8, 1).writeTemporary());
+		try {
+			ClassificationGrid grid = ClassificationGrid.build(shapeFile, 16, 1 << 20);
+			assertEquals(ClassificationGrid.OUTSIDE, grid.classify(grid.minX - 1, grid.minY));
+			assertEquals(ClassificationGrid.OUTSIDE, grid.classify(grid.minX, grid.maxY + 1));
+			assertEquals(ClassificationGrid.OUTSIDE, grid.classify(Double.NaN, grid.minY));
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testResolutionShrinksToFit() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(16, 8, 1).writeTemporary());
+		try {
+			ClassificationGrid grid = ClassificationGrid.build(shapeFile, 256, 64*64*4);
+			assertTrue(grid.resolution <= 64);
+			assertTrue(grid.getSizeInBytes() <= 64*64*4 || grid.resolution == 1);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * Record numbers of every record containing the point, in order.
+	 */
+	static int[] exactLookup(ShapeFile shapeFile, double x, double y) throws Exception {
+		int[] found = new int[shapeFile.getRecordCount()];
+		int count = 0;
+		for(int recordNumber = 1; recordNumber <= shapeFile.getRecordCount(); recordNumber++)
+			if(shapeFile.getRecord(recordNumber).getShape().inBoundry(new Record.Vect(x, y)))
+				found[count++] = recordNumber;
+		return Arrays.copyOf(found, count);
+	}
+
+	private static int[] sorted(int[] values) {
+		int[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
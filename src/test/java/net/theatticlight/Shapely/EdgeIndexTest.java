@@ -0,0 +1,92 @@
+package net.theatticlight.Shapely;
+
+import junit.framework.TestCase;
+import net.theatticlight.Shapely.Record.Polygon;
+
+public class EdgeIndexTest extends TestCase {
+
+	/**
+	 * A 20 by 64 box whose right side zigzags through a vertex at every
+	 * whole Y, with a hole whose left side does the same. 128 vertices make
+	 * 32 slabs of height 2, so every other vertex lies on a slab boundary.
+	 */
+	public void testVerticesOnSlabBoundaries() {
+		double[] coords = new double[128*2];
+		int n = 0;
+		coords[n++] = 0; coords[n++] = 0;
+		coords[n++] = 20; coords[n++] = 0;
+		for(int y = 1; y < 64; y++) {
+			coords[n++] = 20 + (y % 2)*3; coords[n++] = y;
+		}
+		coords[n++] = 20; coords[n++] = 64;
+		coords[n++] = 0; coords[n++] = 64;
+		coords[n++] = 0; coords[n++] = 0;
+		int hole = n/2;
+		for(int y = 4; y <= 60; y++) {
+			coords[n++] = 8 + (y % 2); coords[n++] = y;
+		}
+		coords[n++] = 14; coords[n++] = 60;
+		coords[n++] = 14; coords[n++] = 4;
+		coords[n++] = 8; coords[n++] = 4;
+		assertEquals(coords.length, n);
+		int[] parts = {0, hole};
+
+		EdgeIndex index = new EdgeIndex(coords, parts, 0, 64);
+		assertEquals(32, index.slabCount);
+
+		for(double y = -1; y <= 65; y += 0.5)
+			for(double x = -2; x <= 25; x += 0.25) {
+				assertEquals(x + "," + y, crossings(coords, parts, x, y), index.contains(coords, x, y));
+				double below = Math.nextDown(y), above = Math.nextUp(y);
+				assertEquals(crossings(coords, parts, x, below), index.contains(coords, x, below));
+				assertEquals(crossings(coords, parts, x, above), index.contains(coords, x, above));
+			}
+	}
+
+	/**
+	 * Prepared and unprepared copies of every polygon of a synthetic layer,
+	 * a third of them with holes, agree at random points and at points level
+	 * with each vertex.
+	 */
+	public void testPreparedPolygonsMatchCrossingTest() throws Exception {
+		SyntheticShapeFile synthetic = new SyntheticShapeFile(30, 200, 5);
+		ShapeFile shapeFile = new ShapeFile(synthetic.writeTemporary());
+		try {
+			double[] points = synthetic.samplePoints(5000, 11);
+			for(int recordNumber = 1; recordNumber <= shapeFile.getRecordCount(); recordNumber++) {
+				Polygon plain = (Polygon)shapeFile.readRecord(recordNumber).getShape();
+				Polygon prepared = (Polygon)shapeFile.readRecord(recordNumber).getShape();
+				prepared.prepare();
+				assertTrue(prepared.isPrepared());
+				assertFalse(plain.isPrepared());
+
+				for(int i = 0; i < points.length; i += 2)
+					assertEquals(plain.contains(points[i], points[i+1]), prepared.contains(points[i], points[i+1]));
+				for(int v = 0; v < plain.getPointCount(); v++) {
+					double y = plain.getY(v);
+					for(double x = plain.minX - 1; x <= plain.maxX + 1; x += 0.5)
+						assertEquals(plain.contains(x, y), prepared.contains(x, y));
+				}
+			}
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * Plain even-odd test over every edge of every ring.
+	 */
+	private static boolean crossings(double[] coords, int[] parts, double x, double y) {
+		boolean inside = false;
+		for(int ring = 0; ring < parts.length; ring++) {
+			int start = parts[ring];
+			int end = ring + 1 < parts.length ? parts[ring+1] : coords.length/2;
+			for(int i = start, j = end - 1; i < end; j = i++) {
+				double yi = coords[2*i+1], yj = coords[2*j+1];
+				if((yi > y) != (yj > y) && x < (coords[2*j] - coords[2*i]) * (y - yi) / (yj - yi) + coords[2*i])
+					inside = !inside;
+			}
+		}
+		return inside;
+	}
+}
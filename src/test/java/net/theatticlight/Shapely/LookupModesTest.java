@@ -0,0 +1,154 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Every way of opening and asking a layer answers point lookups as an
+ * exact test of every record does.
+ */
+public class LookupModesTest extends TestCase {
+	SyntheticShapeFile synthetic;
+	String base;
+	double[] xs, ys;
+	List<int[]> expected;
+
+	protected void setUp() throws Exception {
+		synthetic = new SyntheticShapeFile(120, 40, 6);
+		base = synthetic.writeTemporary();
+		double[] points = synthetic.samplePoints(3000, 12);
+		xs = new double[points.length / 2];
+		ys = new double[points.length / 2];
+		for(int i = 0; i < xs.length; i++) {
+			xs[i] = points[2*i];
+			ys[i] = points[2*i+1];
+		}
+
+		ShapeFile shapeFile = new ShapeFile(base);
+		try {
+			expected = new ArrayList<int[]>();
+			for(int i = 0; i < xs.length; i++)
+				expected.add(ClassificationGridTest.exactLookup(shapeFile, xs[i], ys[i]));
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testDefault() throws Exception {
+		assertMatchesExact(new ShapeFile(base));
+	}
+
+	public void testMappedShapesAndAttributes() throws Exception {
+		assertMatchesExact(new ShapeFile(base, new ShapeFile.Options().mapShapes(true).mapAttributes(true)));
+	}
+
+	public void testPreparedPolygons() throws Exception {
+		assertMatchesExact(new ShapeFile(base, new ShapeFile.Options().preparePolygons(1)));
+	}
+
+	public void testClassificationGrid() throws Exception {
+		assertMatchesExact(new ShapeFile(base, new ShapeFile.Options().classificationGrid(64, 1 << 20)));
+	}
+
+	/**
+	 * Cells far smaller than the spacing of the sample points, so no two
+	 * points share a cache entry.
+	 */
+	public void testResultCache() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(base, new ShapeFile.Options().resultCache(new ResultCache(1e-9, 1 << 16)));
+		try {
+			assertSameAnswers(shapeFile);
+			assertSameAnswers(shapeFile);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testSnapshot() throws Exception {
+		File snapshot = new File(base + ".snap");
+		snapshot.deleteOnExit();
+		Snapshot.compile(base, snapshot.getPath());
+		assertMatchesExact(Snapshot.open(snapshot.getPath()));
+	}
+
+	public void testBatch() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(base, new ShapeFile.Options().classificationGrid(64, 1 << 20));
+		try {
+			List<List<Object>> batch = shapeFile.getInfoAtPoints(xs, ys, "ID");
+			assertEquals(xs.length, batch.size());
+			for(int i = 0; i < xs.length; i++)
+				assertEquals(ids(expected.get(i)), sorted(batch.get(i)));
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * Restricted to records with holes, with and without an index on the
+	 * field.
+	 */
+	public void testFiltered() throws Exception {
+		assertFilteredMatchesExact(new ShapeFile(base));
+		assertFilteredMatchesExact(new ShapeFile(base, new ShapeFile.Options().indexAttributes("HOLE")));
+	}
+
+	private void assertFilteredMatchesExact(ShapeFile shapeFile) throws Exception {
+		try {
+			for(int i = 0; i < xs.length; i++) {
+				List<Object> want = new ArrayList<Object>();
+				for(int recordNumber: expected.get(i))
+					if(Boolean.TRUE.equals(shapeFile.getInfo(recordNumber, "HOLE")))
+						want.add(Long.valueOf(recordNumber));
+				List<Object> found = new ArrayList<Object>();
+				for(Record record: shapeFile.getRecordsAtPoint(new Record.Vect(xs[i], ys[i]), "HOLE", Boolean.TRUE))
+					found.add(Long.valueOf(record.getRecordNumber()));
+				assertEquals(want, sorted(found));
+			}
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	private void assertMatchesExact(ShapeFile shapeFile) throws Exception {
+		try {
+			assertSameAnswers(shapeFile);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	private void assertSameAnswers(ShapeFile shapeFile) throws Exception {
+		int hits = 0;
+		for(int i = 0; i < xs.length; i++) {
+			Record.Vect point = new Record.Vect(xs[i], ys[i]);
+			List<Object> records = new ArrayList<Object>();
+			for(Record record: shapeFile.getRecordsAtPoint(point))
+				records.add(Long.valueOf(record.getRecordNumber()));
+			assertEquals(point.getX() + "," + point.getY(), ids(expected.get(i)), sorted(records));
+			assertEquals(ids(expected.get(i)), sorted(shapeFile.getInfoAtPoint(point, "ID")));
+			hits += records.size();
+		}
+		assertTrue(hits > 0);
+	}
+
+	/**
+	 * The synthetic layer's ID field holds each record's number.
+	 */
+	private static List<Object> ids(int[] recordNumbers) {
+		List<Object> ids = new ArrayList<Object>();
+		for(int recordNumber: recordNumbers)
+			ids.add(Long.valueOf(recordNumber));
+		return ids;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static List<Object> sorted(List<Object> values) {
+		List sorted = new ArrayList<Object>(values);
+		Collections.sort(sorted);
+		return sorted;
+	}
+}
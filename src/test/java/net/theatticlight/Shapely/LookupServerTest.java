@@ -0,0 +1,43 @@
+package net.theatticlight.Shapely;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class LookupServerTest extends TestCase {
+
+	public void testNonFiniteNumbersAreNull() {
+		StringBuilder json = new StringBuilder();
+		LookupServer.appendValues(json, Arrays.<Object>asList(1.5, Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 7L, null, "a\"b "));
+		assertEquals("[1.5,null,null,null,7,null,\"a\\\"b\"]", json.toString());
+	}
+
+	public void testParsePoints() throws Exception {
+		double[][] points = LookupServer.parsePoints(stream("1,2\n3 4\n\n 5 , 6"), 1000, 10);
+		assertEquals("[1.0, 3.0, 5.0]", Arrays.toString(points[0]));
+		assertEquals("[2.0, 4.0, 6.0]", Arrays.toString(points[1]));
+	}
+
+	public void testParsePointsLimits() throws Exception {
+		try {
+			LookupServer.parsePoints(stream("1,2\n3,4\n5,6\n"), 1000, 2);
+			fail("Expected the point limit to be enforced");
+		} catch (LookupServer.TooLargeException e) {
+		}
+		try {
+			LookupServer.parsePoints(stream("1,2\n3,4\n"), 5, 10);
+			fail("Expected the byte limit to be enforced");
+		} catch (LookupServer.TooLargeException e) {
+		}
+		try {
+			LookupServer.parsePoints(stream("1;2\n"), 1000, 10);
+			fail("Expected a malformed line to be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static ByteArrayInputStream stream(String body) {
+		return new ByteArrayInputStream(body.getBytes());
+	}
+}
@@ -0,0 +1,114 @@
+package net.theatticlight.Shapely;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.theatticlight.Shapely.Record.Measured;
+import net.theatticlight.Shapely.Record.Measures;
+import net.theatticlight.Shapely.Record.ShapeType;
+
+public class MeasuresTest extends TestCase {
+
+	public void testPolygonZ() throws Exception {
+		assertMeasures(SyntheticShapeFile.POLYGONZ, ShapeType.POLYGONZ, Record.PolygonZ.class, true, true);
+	}
+
+	public void testPolygonM() throws Exception {
+		assertMeasures(SyntheticShapeFile.POLYGONM, ShapeType.POLYGONM, Record.PolygonM.class, false, true);
+	}
+
+	public void testMultiPatch() throws Exception {
+		assertMeasures(SyntheticShapeFile.MULTIPATCH, ShapeType.MULTIPATCH, Record.MultiPatch.class, true, true);
+	}
+
+	/**
+	 * Single points carry no ranges, and M values are optional after Z.
+	 */
+	public void testUnrangedValues() {
+		ByteBuffer zm = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putDouble(3).putDouble(-4);
+		zm.flip();
+		Measures measures = new Measures(zm, 1, true, false);
+		assertTrue(measures.hasZ() && measures.hasM());
+		assertEquals(3.0, measures.getZ().get(0));
+		assertEquals(-4.0, measures.getM().get(0));
+		assertEquals(3.0, measures.getMinZ());
+		assertEquals(3.0, measures.getMaxZ());
+		assertEquals(-4.0, measures.getMinM());
+
+		ByteBuffer z = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(3);
+		z.flip();
+		measures = new Measures(z, 1, true, false);
+		assertTrue(measures.hasZ());
+		assertFalse(measures.hasM());
+		assertNull(measures.getM());
+		assertTrue(Double.isNaN(measures.getMaxM()));
+	}
+
+	/**
+	 * Z values, when present, start after their range, and M values after
+	 * the Z block and their own range; a record with a hole has five more
+	 * vertices than the rest, so offsets that ignore the vertex count drift.
+	 */
+	private void assertMeasures(int fileType, ShapeType shapeType, Class<?> shapeClass, boolean hasZ, boolean hasM) throws Exception {
+		int records = 40, vertices = 9;
+		String base = new SyntheticShapeFile(records, vertices, 5, fileType).writeTemporary();
+		for(boolean mapShapes: new boolean[]{false, true}) {
+			ShapeFile shapeFile = new ShapeFile(base, new ShapeFile.Options().mapShapes(mapShapes));
+			try {
+				double maxZ = -Double.MAX_VALUE, minM = Double.MAX_VALUE;
+				for(int recordNumber = 1; recordNumber <= records; recordNumber++) {
+					Record record = shapeFile.getRecord(recordNumber);
+					assertEquals(shapeType, record.getShapeType());
+					assertEquals(shapeClass, record.getShape().getClass());
+					boolean hole = (recordNumber - 1) % 3 == 0;
+					int points = vertices + 1 + (hole ? 5 : 0);
+					assertEquals(points, record.getVertexCount());
+					maxZ = Math.max(maxZ, SyntheticShapeFile.z(recordNumber, points - 1));
+					minM = Math.min(minM, SyntheticShapeFile.m(recordNumber, points - 1));
+
+					Measures measures = ((Measured)record.getShape()).getMeasures();
+					assertEquals(hasZ, measures.hasZ());
+					assertEquals(hasM, measures.hasM());
+					if(hasZ) {
+						assertEquals(SyntheticShapeFile.z(recordNumber, 0), measures.getMinZ());
+						assertEquals(SyntheticShapeFile.z(recordNumber, points - 1), measures.getMaxZ());
+						DoubleBuffer z = measures.getZ();
+						assertEquals(points, z.remaining());
+						for(int v = 0; v < points; v++)
+							assertEquals(SyntheticShapeFile.z(recordNumber, v), z.get(v));
+					}
+					else {
+						assertNull(measures.getZ());
+						assertTrue(Double.isNaN(measures.getMinZ()));
+					}
+					if(hasM) {
+						assertEquals(SyntheticShapeFile.m(recordNumber, points - 1), measures.getMinM());
+						assertEquals(SyntheticShapeFile.m(recordNumber, 0), measures.getMaxM());
+						DoubleBuffer m = measures.getM();
+						assertEquals(points, m.remaining());
+						for(int v = 0; v < points; v++)
+							assertEquals(SyntheticShapeFile.m(recordNumber, v), m.get(v));
+					}
+
+					if(record.getShape() instanceof Record.MultiPatch) {
+						Record.MultiPatch patch = (Record.MultiPatch)record.getShape();
+						assertEquals(Record.MultiPatch.OUTER_RING, patch.getPartType(0));
+						if(hole)
+							assertEquals(Record.MultiPatch.INNER_RING, patch.getPartType(1));
+						assertEquals(hole ? 2 : 1, patch.partTypes.length);
+					}
+				}
+
+				if(hasZ)
+					assertTrue(Arrays.equals(new double[]{SyntheticShapeFile.z(1, 0), maxZ}, shapeFile.getZBounds()));
+				if(hasM)
+					assertTrue(Arrays.equals(new double[]{minM, SyntheticShapeFile.m(1, 0)}, shapeFile.getMBounds()));
+			} finally {
+				shapeFile.close();
+			}
+		}
+	}
+}
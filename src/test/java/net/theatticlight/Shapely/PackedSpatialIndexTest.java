@@ -0,0 +1,202 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import junit.framework.TestCase;
+
+public class PackedSpatialIndexTest extends TestCase {
+	static final double[] EXTENT = {0, 0, 100, 100};
+
+	public void testBulkLoadMatchesBoxScanOnSyntheticLayer() throws Exception {
+		SyntheticShapeFile synthetic = new SyntheticShapeFile(500, 8, 3);
+		ShapeFile shapeFile = new ShapeFile(synthetic.writeTemporary(), new ShapeFile.Options().mapShapes(true));
+		try {
+			double[] boxes = shapeFile.index.readRecordBounds(shapeFile.scanBuffer());
+			double[] points = synthetic.samplePoints(2000, 9);
+			for(int capacity: new int[]{2, 4, 16})
+				assertMatchesScan(boxes, PackedSpatialIndex.bulkLoad(boxes, shapeFile.getBounds(), capacity), points);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * Overlapping boxes of all sizes, points among them and null shapes.
+	 */
+	public void testBulkLoadMatchesBoxScanOnOverlappingBoxes() {
+		Random random = new Random(17);
+		double[] boxes = new double[3000*4];
+		for(int i = 0; i < boxes.length; i += 4) {
+			if(i % 40 == 0) {
+				boxes[i] = boxes[i+1] = boxes[i+2] = boxes[i+3] = Double.NaN;
+				continue;
+			}
+			double size = i % 12 == 0 ? 0 : random.nextDouble() * random.nextDouble() * 30;
+			boxes[i] = random.nextDouble() * 100;
+			boxes[i+1] = random.nextDouble() * 100;
+			boxes[i+2] = boxes[i] + size;
+			boxes[i+3] = boxes[i+1] + size * random.nextDouble();
+		}
+		double[] points = new double[4000];
+		for(int i = 0; i < points.length; i += 2) {
+			// Every other point lands exactly on a box corner.
+			int corner = (random.nextInt(boxes.length / 4))*4 + (i % 4 == 0 ? 0 : 2);
+			points[i] = Double.isNaN(boxes[corner]) || i % 4 == 2 ? random.nextDouble() * 120 - 10 : boxes[corner];
+			points[i+1] = Double.isNaN(boxes[corner]) || i % 4 == 2 ? random.nextDouble() * 120 - 10 : boxes[corner+1];
+		}
+		for(int capacity: new int[]{2, 3, 16, 64})
+			assertMatchesScan(boxes, PackedSpatialIndex.bulkLoad(boxes, EXTENT, capacity), points);
+	}
+
+	public void testBulkLoadWithoutRecords() {
+		double[] boxes = {Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+		PackedSpatialIndex index = PackedSpatialIndex.bulkLoad(boxes, EXTENT, 16);
+		assertEquals(1, index.getNodeCount());
+		assertTrue(index.getRecordsAtPoint(50, 50).isEmpty());
+	}
+
+	public void testQixRoundTripLittleEndian() throws Exception {
+		PackedSpatialIndex index = syntheticIndex();
+		String base = temporaryBase();
+		index.write(base, 700);
+		RandomAccessFile qix = new RandomAccessFile(base + ".qix", "r");
+		qix.seek(3);
+		assertEquals(SpatialIndex.LSB_ORDER, qix.read());
+		qix.close();
+		assertSameTree(index, PackedSpatialIndex.load(base));
+		assertSameTree(index, PackedSpatialIndex.pack(new SpatialIndex(base)));
+	}
+
+	public void testQixRoundTripBigEndian() throws Exception {
+		PackedSpatialIndex index = syntheticIndex();
+		String base = temporaryBase();
+		index.write(base, 700);
+		toBigEndian(base + ".qix");
+		assertSameTree(index, PackedSpatialIndex.load(base));
+		assertSameTree(index, PackedSpatialIndex.pack(new SpatialIndex(base)));
+	}
+
+	private static PackedSpatialIndex syntheticIndex() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(700, 6, 2).writeTemporary(), new ShapeFile.Options().mapShapes(true));
+		try {
+			return PackedSpatialIndex.bulkLoad(shapeFile.index.readRecordBounds(shapeFile.scanBuffer()), shapeFile.getBounds(), 4);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	private static String temporaryBase() throws Exception {
+		File file = File.createTempFile("shapely", ".qix");
+		file.deleteOnExit();
+		String path = file.getPath();
+		return path.substring(0, path.length() - ".qix".length());
+	}
+
+	/**
+	 * Rewrites a little endian .qix in big endian order, node by node.
+	 */
+	private static void toBigEndian(String path) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			byte[] bytes = new byte[(int)file.length()];
+			file.readFully(bytes);
+			ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer out = ByteBuffer.allocate(bytes.length).order(ByteOrder.BIG_ENDIAN);
+			in.position(8);
+			out.put(bytes, 0, 8);
+			out.put(3, (byte)SpatialIndex.MSB_ORDER);
+			out.putInt(in.getInt()).putInt(in.getInt());
+			while(in.hasRemaining()) {
+				out.putInt(in.getInt());
+				for(int i = 0; i < 4; i++)
+					out.putDouble(in.getDouble());
+				int records = in.getInt();
+				out.putInt(records);
+				for(int i = 0; i < records; i++)
+					out.putInt(in.getInt());
+				out.putInt(in.getInt());
+			}
+			file.seek(0);
+			file.write(out.array());
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void assertSameTree(PackedSpatialIndex expected, PackedSpatialIndex actual) {
+		assertTrue(Arrays.equals(expected.bounds, actual.bounds));
+		assertTrue(Arrays.equals(expected.subtreeEnd, actual.subtreeEnd));
+		assertTrue(Arrays.equals(expected.recordStart, actual.recordStart));
+		assertTrue(Arrays.equals(expected.recordIDs, actual.recordIDs));
+	}
+
+	/**
+	 * Every non-null record is stored once, every node's bounds enclose its
+	 * records and children, and point and envelope queries find at least
+	 * the records a scan of all boxes finds. Queries answer with whole leaf
+	 * nodes, so they may find more.
+	 */
+	private static void assertMatchesScan(double[] boxes, PackedSpatialIndex index, double[] points) {
+		int records = boxes.length / 4;
+		BitSet stored = new BitSet();
+		for(int id: index.recordIDs) {
+			assertFalse(stored.get(id));
+			stored.set(id);
+		}
+		for(int r = 1; r <= records; r++)
+			assertEquals(!Double.isNaN(boxes[(r-1)*4]), stored.get(r));
+
+		for(int node = 0; node < index.nodeCount; node++) {
+			for(int r = index.recordStart[node]; r < index.recordStart[node+1]; r++)
+				assertEncloses(index.bounds, node, boxes, index.recordIDs[r] - 1);
+			for(int child = node + 1; child < index.subtreeEnd[node]; child = index.subtreeEnd[child])
+				assertEncloses(index.bounds, node, index.bounds, child);
+		}
+
+		for(int i = 0; i < points.length; i += 2) {
+			double x = points[i], y = points[i+1];
+			BitSet expected = new BitSet();
+			for(int r = 1; r <= records; r++) {
+				int b = (r-1)*4;
+				if(x >= boxes[b] && y >= boxes[b+1] && x <= boxes[b+2] && y <= boxes[b+3])
+					expected.set(r);
+			}
+			BitSet found = new BitSet();
+			for(int id: index.getRecordsAtPoint(x, y))
+				found.set(id);
+			assertContains(found, expected);
+
+			final BitSet inEnvelope = new BitSet();
+			index.forEachRecordInEnvelope(x - 3, y - 2, x + 3, y + 2, new IntConsumer() {
+				public void accept(int id) {
+					inEnvelope.set(id);
+				}
+			});
+			expected.clear();
+			for(int r = 1; r <= records; r++) {
+				int b = (r-1)*4;
+				if(x + 3 >= boxes[b] && y + 2 >= boxes[b+1] && x - 3 <= boxes[b+2] && y - 2 <= boxes[b+3])
+					expected.set(r);
+			}
+			assertContains(inEnvelope, expected);
+		}
+	}
+
+	private static void assertEncloses(double[] outer, int o, double[] inner, int i) {
+		assertTrue(outer[o*4] <= inner[i*4] && outer[o*4+1] <= inner[i*4+1]);
+		assertTrue(outer[o*4+2] >= inner[i*4+2] && outer[o*4+3] >= inner[i*4+3]);
+	}
+
+	private static void assertContains(BitSet found, BitSet expected) {
+		BitSet missing = (BitSet)expected.clone();
+		missing.andNot(found);
+		assertTrue("Missed " + missing, missing.isEmpty());
+	}
+}
@@ -0,0 +1,110 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import junit.framework.TestCase;
+
+public class RecordSpliteratorTest extends TestCase {
+
+	public void testSplitsCoverEveryRecordOnce() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(1000, 16, 3).writeTemporary(), new ShapeFile.Options().mapShapes(true));
+		try {
+			assertCoversEveryRecordOnce(shapeFile);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * A snapshot splits on vertex offsets rather than .shx byte offsets.
+	 */
+	public void testSnapshotSplitsCoverEveryRecordOnce() throws Exception {
+		String base = new SyntheticShapeFile(700, 16, 3).writeTemporary();
+		File snapshot = new File(base + ".snap");
+		snapshot.deleteOnExit();
+		Snapshot.compile(base, snapshot.getPath());
+		ShapeFile shapeFile = Snapshot.open(snapshot.getPath());
+		try {
+			assertCoversEveryRecordOnce(shapeFile);
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testTooSmallToSplit() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(RecordSpliterator.MIN_SPLIT * 2 - 1, 8, 1).writeTemporary());
+		try {
+			Spliterator<Record> spliterator = shapeFile.spliterator();
+			assertNull(spliterator.trySplit());
+			assertEquals(RecordSpliterator.MIN_SPLIT * 2 - 1, spliterator.estimateSize());
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	public void testParallelStream() throws Exception {
+		ShapeFile shapeFile = new ShapeFile(new SyntheticShapeFile(2000, 8, 2).writeTemporary(), new ShapeFile.Options().mapShapes(true));
+		try {
+			assertEquals(2000, shapeFile.parallelStream().count());
+			ToIntFunction<Record> recordNumber = new ToIntFunction<Record>() {
+				public int applyAsInt(Record record) {
+					return record.getRecordNumber();
+				}
+			};
+			assertEquals(2000 * 2001 / 2, shapeFile.parallelStream().mapToInt(recordNumber).sum());
+			assertEquals(2000, shapeFile.parallelStream().mapToInt(recordNumber).distinct().count());
+		} finally {
+			shapeFile.close();
+		}
+	}
+
+	/**
+	 * Splits as far as it goes, then walks the pieces in order, alternating
+	 * tryAdvance and forEachRemaining. Every piece keeps at least
+	 * MIN_SPLIT records, and the sizes add up at every level.
+	 */
+	private static void assertCoversEveryRecordOnce(ShapeFile shapeFile) throws Exception {
+		List<Spliterator<Record>> pieces = new ArrayList<Spliterator<Record>>();
+		split(shapeFile.spliterator(), pieces);
+		assertTrue(pieces.size() > 2);
+
+		final List<Integer> seen = new ArrayList<Integer>();
+		Consumer<Record> collect = new Consumer<Record>() {
+			public void accept(Record record) {
+				seen.add(record.getRecordNumber());
+			}
+		};
+		for(int i = 0; i < pieces.size(); i++) {
+			Spliterator<Record> piece = pieces.get(i);
+			assertTrue(piece.estimateSize() >= RecordSpliterator.MIN_SPLIT);
+			assertTrue(piece.hasCharacteristics(Spliterator.SIZED | Spliterator.ORDERED));
+			if(i % 2 == 0)
+				while(piece.tryAdvance(collect));
+			else
+				piece.forEachRemaining(collect);
+			assertEquals(0, piece.estimateSize());
+			assertFalse(piece.tryAdvance(collect));
+		}
+
+		assertEquals(shapeFile.getRecordCount(), seen.size());
+		for(int i = 0; i < seen.size(); i++)
+			assertEquals(i + 1, seen.get(i).intValue());
+	}
+
+	private static void split(Spliterator<Record> spliterator, List<Spliterator<Record>> pieces) {
+		long size = spliterator.estimateSize();
+		Spliterator<Record> prefix = spliterator.trySplit();
+		if(prefix == null) {
+			pieces.add(spliterator);
+			return;
+		}
+		assertEquals(size, prefix.estimateSize() + spliterator.estimateSize());
+		split(prefix, pieces);
+		split(spliterator, pieces);
+	}
+}
@@ -0,0 +1,35 @@
+package net.theatticlight.Shapely;
+
+import junit.framework.TestCase;
+
+public class ResultCacheTest extends TestCase {
+
+	public void testCallerCannotChangeCachedAnswer() {
+		ResultCache cache = new ResultCache(1, 100);
+		int[] records = {3, 1, 2};
+		cache.put(0, 5.5, 5.5, records);
+		records[0] = 99;
+
+		int[] cached = cache.get(0, 5.2, 5.7);
+		assertEquals(3, cached[0]);
+		cached[1] = 99;
+		assertEquals(1, cache.get(0, 5.9, 5.1)[1]);
+	}
+
+	public void testCellsAndLayersAreDistinct() {
+		ResultCache cache = new ResultCache(1, 100);
+		cache.put(0, 0.5, 0.5, new int[]{1});
+		assertNull(cache.get(0, 1.5, 0.5));
+		assertNull(cache.get(1, 0.5, 0.5));
+		assertEquals(1, cache.get(0, 0.1, 0.9)[0]);
+	}
+
+	public void testHoldsExactlyTheEntryLimit() {
+		for(int limit: new int[]{1, 5, 127, 1000, 1001}) {
+			ResultCache cache = new ResultCache(1, limit);
+			for(int i = 0; i < limit * 4 + 100; i++)
+				cache.put(0, i, i * 7, ShapeFile.NO_RECORDS);
+			assertEquals(limit, cache.size());
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package net.theatticlight.Shapely;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import net.theatticlight.Shapely.Record.Measured;
+import net.theatticlight.Shapely.Record.Measures;
+import net.theatticlight.Shapely.Record.VertexShape;
+import net.theatticlight.Shapely.Snapshot.SnapshotException;
+
+public class SnapshotTest extends TestCase {
+	static final String[] FIELDS = {"NAME", "ID", "SHARE", "HOLE", "SURVEYED"};
+
+	public void testPolygons() throws Exception {
+		roundTrip(SyntheticShapeFile.POLYGON);
+	}
+
+	public void testPolygonZ() throws Exception {
+		roundTrip(SyntheticShapeFile.POLYGONZ);
+	}
+
+	public void testPolygonM() throws Exception {
+		roundTrip(SyntheticShapeFile.POLYGONM);
+	}
+
+	public void testMultiPatch() throws Exception {
+		roundTrip(SyntheticShapeFile.MULTIPATCH);
+	}
+
+	public void testRejectsOtherFiles() throws Exception {
+		File file = File.createTempFile("shapely", ".snap");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[Snapshot.HEADER_SIZE]);
+		out.close();
+		try {
+			Snapshot.open(file.getPath());
+			fail();
+		} catch (SnapshotException e) {
+			assertEquals("Not a snapshot file", e.getMessage());
+		}
+	}
+
+	private void roundTrip(int shapeType) throws Exception {
+		SyntheticShapeFile synthetic = new SyntheticShapeFile(150, 12, 7, shapeType);
+		String base = synthetic.writeTemporary();
+		File snapshot = new File(base + ".snap");
+		snapshot.deleteOnExit();
+		Snapshot.compile(base, snapshot.getPath());
+
+		ShapeFile source = new ShapeFile(base);
+		ShapeFile compiled = Snapshot.open(snapshot.getPath());
+		try {
+			assertEquals(source.getRecordCount(), compiled.getRecordCount());
+			assertTrue(Arrays.equals(source.getBounds(), compiled.getBounds()));
+			assertTrue(Arrays.equals(source.getZBounds(), compiled.getZBounds()));
+			assertTrue(Arrays.equals(source.getMBounds(), compiled.getMBounds()));
+
+			for(int recordNumber = 1; recordNumber <= source.getRecordCount(); recordNumber++) {
+				assertSameRecord(source.getRecord(recordNumber), compiled.getRecord(recordNumber));
+				for(String field: FIELDS)
+					assertEquals(source.getInfo(recordNumber, field), compiled.getInfo(recordNumber, field));
+			}
+
+			double[] points = synthetic.samplePoints(2000, 3);
+			int hits = 0;
+			for(int i = 0; i < points.length; i += 2) {
+				Record.Vect point = new Record.Vect(points[i], points[i+1]);
+				assertEquals(source.getInfoAtPoint(point, "NAME"), compiled.getInfoAtPoint(point, "NAME"));
+				hits += source.getInfoAtPoint(point, "ID").size();
+			}
+			assertTrue(hits > 0);
+
+			Iterator<Record> scan = compiled.stream().iterator();
+			for(int recordNumber = 1; recordNumber <= source.getRecordCount(); recordNumber++)
+				assertSameRecord(source.getRecord(recordNumber), scan.next());
+			assertFalse(scan.hasNext());
+		} finally {
+			source.close();
+			compiled.close();
+		}
+	}
+
+	private void assertSameRecord(Record expected, Record actual) {
+		assertEquals(expected.getRecordNumber(), actual.getRecordNumber());
+		assertEquals(expected.getShapeType(), actual.getShapeType());
+		assertEquals(expected.getMinX(), actual.getMinX());
+		assertEquals(expected.getMinY(), actual.getMinY());
+		assertEquals(expected.getMaxX(), actual.getMaxX());
+		assertEquals(expected.getMaxY(), actual.getMaxY());
+		assertEquals(expected.getVertexCount(), actual.getVertexCount());
+
+		VertexShape expectedShape = (VertexShape)expected.getShape();
+		VertexShape actualShape = (VertexShape)actual.getShape();
+		assertEquals(expectedShape.getClass(), actualShape.getClass());
+		assertTrue(Arrays.equals(expectedShape.parts, actualShape.parts));
+		assertTrue(Arrays.equals(expectedShape.coords, actualShape.coords));
+		if(expectedShape instanceof Record.MultiPatch)
+			assertTrue(Arrays.equals(((Record.MultiPatch)expectedShape).partTypes, ((Record.MultiPatch)actualShape).partTypes));
+
+		if(expectedShape instanceof Measured) {
+			Measures expectedMeasures = ((Measured)expectedShape).getMeasures();
+			Measures actualMeasures = ((Measured)actualShape).getMeasures();
+			assertEquals(expectedMeasures.hasZ(), actualMeasures.hasZ());
+			assertEquals(expectedMeasures.hasM(), actualMeasures.hasM());
+			assertEquals(expectedMeasures.getMinZ(), actualMeasures.getMinZ());
+			assertEquals(expectedMeasures.getMaxM(), actualMeasures.getMaxM());
+			assertSameValues(expectedMeasures.getZ(), actualMeasures.getZ());
+			assertSameValues(expectedMeasures.getM(), actualMeasures.getM());
+		}
+	}
+
+	private void assertSameValues(DoubleBuffer expected, DoubleBuffer actual) {
+		if(expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected, actual);
+	}
+}
@@ -0,0 +1,32 @@
+package net.theatticlight.Shapely;
+
+import junit.framework.TestCase;
+
+public class VectTest extends TestCase {
+	static final double EPSILON = 1e-12;
+
+	final Record.Vect a = new Record.Vect(0, 0);
+	final Record.Vect b = new Record.Vect(4, 0);
+
+	public void testDistanceToEndpoints() {
+		assertEquals(0, a.distanceToLineSegment(a, b), EPSILON);
+		assertEquals(0, b.distanceToLineSegment(a, b), EPSILON);
+	}
+
+	public void testDistanceToInterior() {
+		assertEquals(3, new Record.Vect(2, 3).distanceToLineSegment(a, b), EPSILON);
+		assertEquals(3, new Record.Vect(2, -3).distanceToLineSegment(a, b), EPSILON);
+	}
+
+	public void testFootOutsideSegment() {
+		// The perpendicular foot falls at x = -3 and x = 7, beyond either
+		// end, so the distance is to the nearer endpoint.
+		assertEquals(5, new Record.Vect(-3, 4).distanceToLineSegment(a, b), EPSILON);
+		assertEquals(5, new Record.Vect(7, 4).distanceToLineSegment(a, b), EPSILON);
+		assertEquals(5, new Record.Vect(-3, 4).distanceToLineSegment(b, a), EPSILON);
+	}
+
+	public void testDegenerateSegment() {
+		assertEquals(5, new Record.Vect(3, 4).distanceToLineSegment(a, a), EPSILON);
+	}
+}